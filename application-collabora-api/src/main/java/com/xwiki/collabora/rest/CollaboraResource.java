@@ -49,4 +49,20 @@ public interface CollaboraResource extends XWikiRestComponent
     @GET
     @Path("/rights")
     Response checkRights(@QueryParam("document_ref") String documentRef) throws XWikiRestException;
+
+    /**
+     * Get the file formats supported by the Collabora server, so that the editor is only offered for the files it can
+     * open.
+     *
+     * @param wiki the wiki whose configured Collabora server is used (since each wiki can use a different server), or
+     *     {@code null} for the current wiki
+     * @return the action of the editor ({@code edit} or {@code view}) supported for each file extension, and whether
+     *     the Collabora server can convert documents, with the file extensions it can convert
+     * @throws XWikiRestException with code 500 if the formats supported by the Collabora server could not be read, 404
+     *     if the given wiki doesn't exist, or 401 if the user has no view rights on it
+     * @since 1.8.4
+     */
+    @GET
+    @Path("/formats")
+    Response getFormats(@QueryParam("wiki") String wiki) throws XWikiRestException;
 }
@@ -19,6 +19,8 @@
  */
 package com.xwiki.collabora.rest;
 
+import java.io.InputStream;
+
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -57,6 +59,24 @@ public interface Wopi extends XWikiRestComponent
     @GET
     Response get(@PathParam("id") String fileId, @QueryParam("access_token") String token) throws XWikiRestException;
 
+    /**
+     * Execute the file operation given in the {@code X-WOPI-Override} header, i.e. {@code LOCK}, {@code UNLOCK},
+     * {@code REFRESH_LOCK} or {@code GET_LOCK}. The lock is given in the {@code X-WOPI-Lock} header, and the lock to
+     * replace, if any, in the {@code X-WOPI-OldLock} header. The {@code PUT_RELATIVE} operation creates a new file
+     * next to this one (e.g. for the "Save As" action), named after the {@code X-WOPI-SuggestedTarget} or
+     * {@code X-WOPI-RelativeTarget} header.
+     *
+     * @param fileId id of the file
+     * @param token {@code String} representation of the authentication token
+     * @param body the content of the new file, for the {@code PUT_RELATIVE} operation
+     * @return the status of the operation, with the current lock in the {@code X-WOPI-Lock} header in case of conflict
+     * @throws XWikiRestException if an error occurred while executing the operation
+     * @since 1.8.4
+     */
+    @POST
+    Response postFile(@PathParam("id") String fileId, @QueryParam("access_token") String token, InputStream body)
+        throws XWikiRestException;
+
     /**
      * Get file content.
      *
@@ -77,14 +97,14 @@ public interface Wopi extends XWikiRestComponent
      *
      * @param fileId id of the file
      * @param token {@code String} representation of the authentication token
-     * @param body file content
+     * @param body file content, read as a stream so that big files are not loaded in memory (since 1.8.4)
      * @return information about the updated file
      * @throws XWikiRestException if an error occurred while updating the file
      */
     @POST
     @Path("/contents")
-    Response postContents(@PathParam("id") String fileId, @QueryParam("access_token") String token, byte[] body)
-        throws XWikiRestException;
+    Response postContents(@PathParam("id") String fileId, @QueryParam("access_token") String token,
+        InputStream body) throws XWikiRestException;
 
     /**
      * Get information specific to this type of file, to know which part of Collabora online to load. Get information
@@ -19,15 +19,20 @@
  */
 package com.xwiki.collabora.internal;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Date;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.environment.Environment;
 import org.xwiki.localization.ContextualLocalizationManager;
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
@@ -39,6 +44,7 @@ import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
 
 /**
  * Manage document attachments.
@@ -60,28 +66,104 @@ public class AttachmentManager
     @Named("document")
     private UserReferenceResolver<DocumentReference> userReferenceResolver;
 
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @Inject
+    private SaveCoalescer saveCoalescer;
+
+    @Inject
+    private Logger logger;
+
     /**
-     * Create or update attachment with given content.
+     * Create or update attachment with given content. The content is read fully before the document is modified: it's
+     * kept in memory when it's small and spooled to a temporary file otherwise, so that the memory used doesn't depend
+     * on the size of the attachment.
      *
      * @param attachmentReference reference of the attachment
-     * @param content the new attachment content
+     * @param content the new attachment content, which is not closed by this method
      * @param userReference the current user reference
      * @return a modified {@link XWikiAttachment}
      * @throws XWikiRestException If an exception occurs while the Attachment is created or updated.
+     * @since 1.8.4
+     */
+    public XWikiAttachment createOrUpdateAttachment(AttachmentReference attachmentReference, InputStream content,
+        DocumentReference userReference) throws XWikiException
+    {
+        PendingSave save = new PendingSave(attachmentReference, spool(attachmentReference, content), userReference);
+        try {
+            synchronized (this.saveCoalescer.getLock(attachmentReference)) {
+                // This content is newer than any content waiting to be saved.
+                this.saveCoalescer.discard(attachmentReference);
+                return saveAttachment(save);
+            }
+        } finally {
+            save.getContent().dispose();
+        }
+    }
+
+    /**
+     * Update an attachment with the given content once the save coalescing window is over, unless a newer content is
+     * saved in the meantime.
+     *
+     * @param attachmentReference reference of the attachment
+     * @param content the new attachment content, which is not closed by this method
+     * @param userReference the current user reference
+     * @return the date of the new attachment content
+     * @throws XWikiException If an exception occurs while reading the new content
+     * @since 1.8.4
      */
-    public XWikiAttachment createOrUpdateAttachment(AttachmentReference attachmentReference, byte[] content,
+    public Date updateAttachmentLater(AttachmentReference attachmentReference, InputStream content,
         DocumentReference userReference) throws XWikiException
     {
+        return this.saveCoalescer
+            .schedule(new PendingSave(attachmentReference, spool(attachmentReference, content), userReference));
+    }
+
+    private SpooledContent spool(AttachmentReference attachmentReference, InputStream content) throws XWikiException
+    {
+        try {
+            return SpooledContent.spool(content, this.instanceConfiguration.getUploadMemoryThreshold(),
+                this.environment.getTemporaryDirectory());
+        } catch (IOException e) {
+            throw new XWikiException(
+                String.format("Failed to read the new content of the attachment [%s].", attachmentReference), e);
+        }
+    }
+
+    /**
+     * Save the given content in the wiki. The caller must hold the lock of the attachment.
+     *
+     * @param save the content to save
+     * @return the modified {@link XWikiAttachment}
+     * @throws XWikiException If an exception occurs while the Attachment is created or updated.
+     */
+    XWikiAttachment saveAttachment(PendingSave save) throws XWikiException
+    {
+        AttachmentReference attachmentReference = save.getAttachmentReference();
+        DocumentReference userReference = save.getUserReference();
         XWikiContext xcontext = this.contextProvider.get();
         XWiki xwiki = xcontext.getWiki();
         DocumentReference documentReference = attachmentReference.getDocumentReference();
 
-        try {
+        try (InputStream content = save.getContent().openStream()) {
+            XWikiDocument document = xwiki.getDocument(documentReference, xcontext);
+            XWikiAttachment currentAttachment = document.getAttachment(attachmentReference.getName());
+            if (currentAttachment != null && hasSameContent(currentAttachment, save, xcontext)) {
+                // Don't create a new revision (and clone the document) when the file was saved without changes.
+                this.logger.debug("Skipped saving the unchanged attachment [{}].", attachmentReference);
+                return currentAttachment;
+            }
+
             // We clone the document because we're going to modify it and we shouldn't modify the cached instance.
-            XWikiDocument document = xwiki.getDocument(documentReference, xcontext).clone();
-            XWikiAttachment attachment =
-                document.setAttachment(attachmentReference.getName(), new ByteArrayInputStream(content), xcontext);
+            document = document.clone();
+            XWikiAttachment attachment = document.setAttachment(attachmentReference.getName(), content, xcontext);
             attachment.setAuthorReference(userReference);
+            // Keep the date returned to Collabora when the save was delayed.
+            attachment.setDate(save.getDate());
 
             document.getAuthors().setOriginalMetadataAuthor(userReferenceResolver.resolve(userReference));
             xwiki.saveDocument(document,
@@ -95,6 +177,18 @@ public class AttachmentManager
         }
     }
 
+    private boolean hasSameContent(XWikiAttachment attachment, PendingSave save, XWikiContext xcontext)
+        throws XWikiException, IOException
+    {
+        // Compare the sizes first, to avoid reading the current content most of the time.
+        if (attachment.getLongSize() != save.getSize()) {
+            return false;
+        }
+        try (InputStream currentContent = attachment.getContentInputStream(xcontext)) {
+            return MessageDigest.isEqual(DigestUtils.sha256(currentContent), save.getContent().getHash());
+        }
+    }
+
     /**
      * @param attachmentReference reference of the attachment
      * @return the {@link XWikiAttachment} object corresponding to the given reference
@@ -0,0 +1,216 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.xwiki.collabora.configuration.CollaboraConfiguration;
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+/**
+ * Reads the capabilities advertised by the Collabora server at https://<WOPIClientURL>:<port>/hosting/capabilities,
+ * e.g. the version of the server or whether it can convert documents. The capabilities are cached for each server URL,
+ * as long as the discovery. Like the discovery, once the cached capabilities are expired they keep being used while
+ * they're refreshed in the background, and they are never loaded while holding the lock of the cache.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Component(roles = CapabilitiesManager.class)
+@Singleton
+public class CapabilitiesManager implements Initializable, Disposable
+{
+    /**
+     * Delay before trying again to load capabilities that failed to be loaded, in milliseconds.
+     */
+    private static final long RETRY_DELAY = 60000;
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private static final int READ_TIMEOUT = 10000;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Provider<CollaboraConfiguration> configurationProvider;
+
+    @Inject
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    private final Map<String, Capabilities> capabilities = new ConcurrentHashMap<>();
+
+    /**
+     * The server URLs whose capabilities are currently being refreshed, to avoid refreshing them concurrently.
+     */
+    private final Map<String, Boolean> refreshing = new ConcurrentHashMap<>();
+
+    private ExecutorService refresher;
+
+    /**
+     * The capabilities of a Collabora server.
+     */
+    private static final class Capabilities
+    {
+        private final JsonNode json;
+
+        private final long expirationTime;
+
+        Capabilities(JsonNode json, long expirationTime)
+        {
+            this.json = json;
+            this.expirationTime = expirationTime;
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() > this.expirationTime;
+        }
+
+        String getText(String field)
+        {
+            return this.json != null ? StringUtils.defaultIfEmpty(this.json.path(field).asText(), null) : null;
+        }
+
+        boolean isAvailable(String feature)
+        {
+            // Assume that the feature is available when the capabilities are not known.
+            return this.json == null || this.json.path(feature).path("available").asBoolean(true);
+        }
+    }
+
+    @Override
+    public void initialize()
+    {
+        this.refresher = Executors.newSingleThreadExecutor(
+            new BasicThreadFactory.Builder().namingPattern("Collabora capabilities refresher").daemon(true).build());
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.refresher.shutdownNow();
+    }
+
+    /**
+     * @return the version of the Collabora server (including its build hash, when available), or {@code null} if it
+     *     couldn't be determined
+     */
+    public String getServerVersion()
+    {
+        Capabilities serverCapabilities = getCapabilities();
+        String version = serverCapabilities.getText("productVersion");
+        String hash = serverCapabilities.getText("productVersionHash");
+        return version != null && hash != null ? version + '-' + hash : version;
+    }
+
+    /**
+     * @return {@code true} if the Collabora server can convert documents, or if its capabilities couldn't be
+     *     determined, {@code false} otherwise
+     */
+    public boolean isConversionAvailable()
+    {
+        return getCapabilities().isAvailable("convert-to");
+    }
+
+    private Capabilities getCapabilities()
+    {
+        // Use a provider in order to not cache the configuration of a specific wiki.
+        String serverURL = this.configurationProvider.get().getServerURL();
+        Capabilities current = this.capabilities.get(serverURL);
+        if (current == null) {
+            // Only the first load blocks the request, the next ones are done in the background.
+            Capabilities loaded = load(serverURL, null);
+            current = this.capabilities.putIfAbsent(serverURL, loaded);
+            return current != null ? current : loaded;
+        }
+
+        if (current.isExpired()) {
+            refreshInBackground(serverURL, current);
+        }
+
+        return current;
+    }
+
+    private void refreshInBackground(String serverURL, Capabilities current)
+    {
+        if (this.refreshing.putIfAbsent(serverURL, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            this.refresher.execute(() -> {
+                try {
+                    this.capabilities.put(serverURL, load(serverURL, current));
+                } finally {
+                    this.refreshing.remove(serverURL);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The component is being disposed.
+            this.refreshing.remove(serverURL);
+        }
+    }
+
+    private Capabilities load(String serverURL, Capabilities previous)
+    {
+        try {
+            URL capabilitiesURL = new URL(serverURL + "/hosting/capabilities");
+            this.logger.debug("Loading the Collabora capabilities from [{}]", capabilitiesURL);
+            HttpURLConnection connection = (HttpURLConnection) capabilitiesURL.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            try (InputStream inputStream = connection.getInputStream()) {
+                return new Capabilities(OBJECT_MAPPER.readTree(inputStream),
+                    System.currentTimeMillis() + this.instanceConfiguration.getDiscoveryTimeToLive() * 1000L);
+            }
+        } catch (IOException e) {
+            this.logger.warn("Failed to load the Collabora capabilities from [{}]. Root cause: [{}]", serverURL,
+                ExceptionUtils.getRootCauseMessage(e));
+            // Keep the previous capabilities, if any, but don't try again right away.
+            return new Capabilities(previous != null ? previous.json : null,
+                System.currentTimeMillis() + RETRY_DELAY);
+        }
+    }
+}
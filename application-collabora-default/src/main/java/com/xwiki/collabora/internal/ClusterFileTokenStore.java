@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.util.UUID;
+import java.util.function.UnaryOperator;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.ObservationManager;
+
+/**
+ * Replicates the tokens on all the members of the cluster, so that the WOPI requests done by the Collabora server can
+ * be handled by any XWiki instance, without sticky sessions. Each instance keeps a copy of the tokens in a
+ * {@link MemoryFileTokenStore} and the changes are sent to the other instances as remote events (see
+ * {@link FileTokenEventListener}), which requires the remote observation to be enabled in {@code xwiki.properties}.
+ * Each change increments the version of the token, so that the changes received out of order are ignored when a more
+ * recent one was already applied. Expired tokens are removed independently by each instance, so a token that replaces
+ * another one is always applied, whatever its version (see {@link FileToken#isNewerThan(FileToken)}). Calls that
+ * don't change the token are not sent to the other instances.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Component
+@Named("cluster")
+@Singleton
+public class ClusterFileTokenStore implements FileTokenStore
+{
+    @Inject
+    @Named(MemoryFileTokenStore.HINT)
+    private FileTokenStore localStore;
+
+    @Inject
+    private ObservationManager observationManager;
+
+    /**
+     * Identifies the changes made by this member of the cluster.
+     */
+    private final String origin = UUID.randomUUID().toString();
+
+    @Override
+    public FileToken get(String token)
+    {
+        return this.localStore.get(token);
+    }
+
+    @Override
+    public FileToken get(String user, String fileId)
+    {
+        return this.localStore.get(user, fileId);
+    }
+
+    @Override
+    public FileToken compute(String user, String fileId, UnaryOperator<FileToken> function)
+    {
+        return this.localStore.compute(user, fileId, current -> {
+            long version = current != null ? current.getVersion() : 0;
+            FileToken previous = current != null ? new FileToken(current) : null;
+            FileToken result = function.apply(current);
+
+            // Notify the other members from inside the atomic operation, so that the versions of the changes of a
+            // token are sent in the order in which the changes were made. Send a snapshot of the token since it can
+            // still be modified locally while the event is sent.
+            if (result != null && result == current && result.hasSameState(previous)) {
+                return result;
+            } else if (result != null) {
+                result.setVersion(version + 1, this.origin);
+                this.observationManager.notify(new FileTokenUpdatedEvent(), new FileToken(result), null);
+            } else if (current != null) {
+                FileToken removed = new FileToken(current);
+                removed.setVersion(version + 1, this.origin);
+                this.observationManager.notify(new FileTokenRemovedEvent(), removed, null);
+            }
+
+            return result;
+        });
+    }
+
+    @Override
+    public int size()
+    {
+        return this.localStore.size();
+    }
+
+    @Override
+    public long getExpiredCount()
+    {
+        return this.localStore.getExpiredCount();
+    }
+
+    @Override
+    public long getEvictedCount()
+    {
+        return this.localStore.getEvictedCount();
+    }
+}
@@ -19,48 +19,166 @@
  */
 package com.xwiki.collabora.internal;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
 
 import com.xwiki.collabora.configuration.CollaboraConfiguration;
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
 
 /**
  * To set up the iframe, the WOPI host (the application) needs to read a discovery XML from a defined location on the
  * WOPI client (the Collabora Online server). The discovery is available at:
  * https://<WOPIClientURL>:<port>/hosting/discovery. The reply is discovery.xml that contains urlsrc for various file
  * formats. The urlsrc needs to be used in the iframe for editing the document.
+ * <p>
+ * The discovery is parsed once and cached, for each discovery URL (so a change of the configured server is taken into
+ * account right away). Once the cached discovery is older than the configured time to live, it keeps being used while
+ * it's refreshed in the background, so an unreachable Collabora server doesn't block the opening of the editor.
  *
  * @version $Id$
  * @since 1.0
  */
 @Component(roles = DiscoveryManager.class)
 @Singleton
-public class DiscoveryManager
+public class DiscoveryManager implements Initializable, Disposable
 {
+    /**
+     * Delay before trying again to refresh a discovery that failed to be refreshed, in milliseconds.
+     */
+    private static final long RETRY_DELAY = 60000;
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private static final int READ_TIMEOUT = 10000;
+
+    private static final String ACTION = "action";
+
+    private static final String EXT = "ext";
+
+    private static final String URL_SRC = "urlsrc";
+
+    private static final String EDIT = "edit";
+
+    private static final String VIEW = "view";
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+
     @Inject
     private Logger logger;
 
     @Inject
     private Provider<CollaboraConfiguration> configurationProvider;
 
+    @Inject
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    private final Map<String, Discovery> discoveries = new ConcurrentHashMap<>();
+
+    /**
+     * The discovery URLs that are currently being refreshed, to avoid refreshing the same discovery concurrently.
+     */
+    private final Map<String, Boolean> refreshing = new ConcurrentHashMap<>();
+
+    /**
+     * The first loads of the discoveries that are in progress, so that the concurrent requests wait for the same load
+     * without holding the lock of the {@link #discoveries} map.
+     */
+    private final Map<String, CompletableFuture<Discovery>> firstLoads = new ConcurrentHashMap<>();
+
+    private ExecutorService refresher;
+
+    /**
+     * The parsed discovery of a Collabora server.
+     */
+    private static final class Discovery
+    {
+        private final Map<String, String> urlSrcByExtension;
+
+        private final Map<String, Map<String, String>> urlSrcByAction;
+
+        private final Map<String, String> editorActions;
+
+        private final String etag;
+
+        private final long expirationTime;
+
+        Discovery(Map<String, String> urlSrcByExtension, Map<String, Map<String, String>> urlSrcByAction, String etag,
+            long expirationTime)
+        {
+            this.urlSrcByExtension = urlSrcByExtension;
+            this.urlSrcByAction = urlSrcByAction;
+            this.editorActions = computeEditorActions(urlSrcByAction);
+            this.etag = etag;
+            this.expirationTime = expirationTime;
+        }
+
+        Discovery withExpirationTime(long newExpirationTime)
+        {
+            return new Discovery(this.urlSrcByExtension, this.urlSrcByAction, this.etag, newExpirationTime);
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() > this.expirationTime;
+        }
+
+        private static Map<String, String> computeEditorActions(Map<String, Map<String, String>> urlSrcByAction)
+        {
+            Map<String, String> editorActions = new HashMap<>();
+            for (String viewAction : List.of(VIEW, "view_comment")) {
+                urlSrcByAction.getOrDefault(viewAction, Collections.emptyMap()).keySet()
+                    .forEach(ext -> editorActions.put(ext, VIEW));
+            }
+            // The formats that can be edited can also be viewed.
+            urlSrcByAction.getOrDefault(EDIT, Collections.emptyMap()).keySet()
+                .forEach(ext -> editorActions.put(ext, EDIT));
+            return Collections.unmodifiableMap(editorActions);
+        }
+    }
+
+    @Override
+    public void initialize()
+    {
+        this.refresher = Executors.newSingleThreadExecutor(
+            new BasicThreadFactory.Builder().namingPattern("Collabora discovery refresher").daemon(true).build());
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.refresher.shutdownNow();
+    }
+
     /**
      * Get the urlSrc specific to this type of file. This is needed in order to know which part of Collabora online to
      * load.
@@ -70,51 +188,201 @@ public class DiscoveryManager
      * @throws IOException If an error occurred while getting the information from the Collabora server
      */
     public String getURLSrc(String fileId) throws IOException
+    {
+        String urlSrc = getDiscovery().urlSrcByExtension.get(getExtension(fileId));
+        if (urlSrc != null) {
+            logger.debug("Found the urlsrc for file [{}] in the Collabora discovery response.", fileId);
+        } else {
+            logger.debug("No urlsrc found for file [{}] in the Collabora discovery response.", fileId);
+        }
+        return urlSrc;
+    }
+
+    /**
+     * Get the urlSrc of the given action for this type of file.
+     *
+     * @param fileId id of the file
+     * @param action the name of the action, as declared in the discovery (e.g. {@code edit} or {@code view})
+     * @return the urlSrc of the given action for this file format, or {@code null} if this action is not supported
+     * @throws IOException If an error occurred while getting the information from the Collabora server
+     * @since 1.8.4
+     */
+    public String getURLSrc(String fileId, String action) throws IOException
+    {
+        return getDiscovery().urlSrcByAction.getOrDefault(action, Collections.emptyMap()).get(getExtension(fileId));
+    }
+
+    /**
+     * @return the action of the editor (i.e. {@code edit} or {@code view}) supported by the Collabora server for each
+     *     file extension
+     * @throws IOException If an error occurred while getting the information from the Collabora server
+     * @since 1.8.4
+     */
+    public Map<String, String> getEditorActions() throws IOException
+    {
+        return getDiscovery().editorActions;
+    }
+
+    /**
+     * @return the file extensions supported by the Collabora server
+     * @throws IOException If an error occurred while getting the information from the Collabora server
+     * @since 1.8.4
+     */
+    public Set<String> getExtensions() throws IOException
+    {
+        return Collections.unmodifiableSet(getDiscovery().urlSrcByExtension.keySet());
+    }
+
+    private String getExtension(String fileId)
+    {
+        return fileId.substring(fileId.lastIndexOf('.') + 1);
+    }
+
+    private Discovery getDiscovery() throws IOException
     {
         // Use a provider in order to not cache the configuration of a specific wiki.
         URL discoveryURL = this.configurationProvider.get().getDiscoveryURL();
+        String key = discoveryURL.toString();
+        Discovery discovery = this.discoveries.get(key);
+        if (discovery == null) {
+            // Only the first load blocks the request, the next ones are done in the background.
+            return loadFirst(discoveryURL);
+        }
+
+        if (discovery.isExpired()) {
+            refreshInBackground(discoveryURL, discovery);
+        }
+
+        return discovery;
+    }
+
+    private Discovery loadFirst(URL discoveryURL) throws IOException
+    {
+        String key = discoveryURL.toString();
+        CompletableFuture<Discovery> firstLoad = new CompletableFuture<>();
+        CompletableFuture<Discovery> currentLoad = this.firstLoads.putIfAbsent(key, firstLoad);
+        if (currentLoad == null) {
+            currentLoad = firstLoad;
+            try {
+                Discovery discovery = load(discoveryURL, null);
+                Discovery current = this.discoveries.putIfAbsent(key, discovery);
+                firstLoad.complete(current != null ? current : discovery);
+            } catch (IOException | RuntimeException e) {
+                firstLoad.completeExceptionally(e);
+            } finally {
+                this.firstLoads.remove(key, firstLoad);
+            }
+        }
+
+        try {
+            return currentLoad.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to load the Collabora discovery.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the Collabora discovery.", e);
+        }
+    }
+
+    private void refreshInBackground(URL discoveryURL, Discovery discovery)
+    {
+        String key = discoveryURL.toString();
+        if (this.refreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            this.refresher.execute(() -> {
+                try {
+                    this.discoveries.put(key, load(discoveryURL, discovery));
+                } catch (Exception e) {
+                    this.logger.warn("Failed to refresh the Collabora discovery from [{}], the previous one is still "
+                        + "used. Root cause: [{}]", discoveryURL, ExceptionUtils.getRootCauseMessage(e));
+                    this.discoveries.put(key, discovery.withExpirationTime(System.currentTimeMillis() + RETRY_DELAY));
+                } finally {
+                    this.refreshing.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The component is being disposed.
+            this.refreshing.remove(key);
+        }
+    }
+
+    /**
+     * Load the discovery from the Collabora server.
+     *
+     * @param discoveryURL the discovery URL
+     * @param previous the previous discovery, used to avoid downloading the discovery again if it didn't change, or
+     *     {@code null}
+     * @return the loaded discovery
+     * @throws IOException if the discovery could not be loaded
+     */
+    private Discovery load(URL discoveryURL, Discovery previous) throws IOException
+    {
         logger.debug("Opening connection to the Collabora discovery URL: [{}]", discoveryURL);
         HttpURLConnection connection = (HttpURLConnection) discoveryURL.openConnection();
         connection.setRequestMethod("GET");
-        logger.debug("Connection opened with response: [{}].", connection.getResponseCode());
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        if (previous != null && previous.etag != null) {
+            connection.setRequestProperty("If-None-Match", previous.etag);
+        }
+        int responseCode = connection.getResponseCode();
+        logger.debug("Connection opened with response: [{}].", responseCode);
 
-        return getURLSrc(getConnectionResponse(connection), fileId);
-    }
+        long expirationTime = System.currentTimeMillis() + this.instanceConfiguration.getDiscoveryTimeToLive() * 1000L;
+        if (previous != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return previous.withExpirationTime(expirationTime);
+        }
 
-    private static String getConnectionResponse(HttpURLConnection connection) throws IOException
-    {
-        BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        String inputLine;
-        StringBuilder content = new StringBuilder();
-        while ((inputLine = in.readLine()) != null) {
-            content.append(inputLine);
+        Discovery discovery;
+        try (InputStream inputStream = connection.getInputStream()) {
+            discovery = parse(inputStream, connection.getHeaderField("ETag"), expirationTime);
         }
-        in.close();
-        return content.toString();
+        logger.debug("Loaded [{}] file extensions from the Collabora discovery.", discovery.urlSrcByExtension.size());
+
+        return discovery;
     }
 
-    private String getURLSrc(String response, String fileId)
+    private Discovery parse(InputStream inputStream, String etag, long expirationTime) throws IOException
     {
-        String ext = fileId.substring(fileId.lastIndexOf(".") + 1);
+        // Index all the actions of the discovery in a single streaming pass, without loading the whole document.
+        Map<String, String> urlSrcByExtension = new HashMap<>();
+        Map<String, Map<String, String>> urlSrcByAction = new HashMap<>();
         try {
-            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
-                .parse(new ByteArrayInputStream(response.getBytes()));
-
-            NodeList nodeList = document.getElementsByTagName("action");
-            for (int i = 0; i <= nodeList.getLength(); i++) {
-                Element elem = (Element) nodeList.item(i);
-                if (elem.getAttribute("ext").equals(ext)) {
-                    logger.debug("Found the urlsrc for file [{}] in the Collabora discovery response.", fileId);
-                    return elem.getAttribute("urlsrc");
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && ACTION.equals(reader.getLocalName())) {
+                        String ext = reader.getAttributeValue(null, EXT);
+                        String urlSrc = reader.getAttributeValue(null, URL_SRC);
+                        if (StringUtils.isNoneEmpty(ext, urlSrc)) {
+                            // Keep the first action declared for an extension, as before the discovery was cached.
+                            urlSrcByExtension.putIfAbsent(ext, urlSrc);
+                            urlSrcByAction.computeIfAbsent(reader.getAttributeValue(null, "name"),
+                                k -> new HashMap<>()).putIfAbsent(ext, urlSrc);
+                        }
+                    }
                 }
+            } finally {
+                reader.close();
             }
-
-            logger.debug("No urlsrc found for file [{}] in the Collabora discovery response.", fileId);
-            return null;
-        } catch (ParserConfigurationException | SAXException | IOException e) {
-            logger.warn("Failed to parse the Collabora discovery response for file [{}]. Root cause: [{}]", fileId,
-                ExceptionUtils.getRootCauseMessage(e));
-            throw new RuntimeException(e);
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to parse the Collabora discovery response.", e);
         }
+
+        return new Discovery(urlSrcByExtension, urlSrcByAction, etag, expirationTime);
+    }
+
+    private static XMLInputFactory createXMLInputFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // The discovery doesn't need a DTD, so don't resolve any external entity.
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
     }
 }
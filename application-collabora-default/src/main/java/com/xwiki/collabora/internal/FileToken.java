@@ -19,6 +19,7 @@
  */
 package com.xwiki.collabora.internal;
 
+import java.io.Serializable;
 import java.security.SecureRandom;
 import java.util.Date;
 import java.util.Objects;
@@ -27,13 +28,18 @@ import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 
 /**
- * Token used in order to authenticate requests done using the WOPI protocol.
+ * Token used in order to authenticate requests done using the WOPI protocol. The mutable state is visible across
+ * threads, but compound updates (e.g. incrementing the usage) must be done atomically by the caller, see
+ * {@link FileTokenStore#compute(String, String, java.util.function.UnaryOperator)}. Tokens are serializable so that
+ * they can be shared with the other members of a cluster.
  *
  * @version $Id$
  * @since 1.0
  */
-public class FileToken
+public class FileToken implements Serializable
 {
+    private static final long serialVersionUID = 1L;
+
     private static final SecureRandom SECURE_RANDOM = new SecureRandom();
 
     private final String user;
@@ -44,30 +50,76 @@ public class FileToken
 
     private final int randomNumber;
 
+    private String value;
+
     /**
      * Token timeout, in seconds.
      */
-    private int tokenTimeout;
+    private volatile int tokenTimeout;
+
+    /**
+     * The initial token timeout, in seconds, used as the delay during which an expired token can still be extended.
+     */
+    private final int lifetime;
+
+    private volatile boolean hasView;
 
-    private boolean hasView;
+    private volatile boolean hasEdit;
 
-    private boolean hasEdit;
+    private volatile int usage;
 
-    private int usage;
+    private volatile ActionMode actionMode;
 
-    private ActionMode actionMode;
+    /**
+     * The number of changes made to this token, used to order the changes replicated on the members of a cluster.
+     */
+    private volatile long version;
+
+    /**
+     * The cluster member that made the last change, used to order the concurrent changes with the same version.
+     */
+    private volatile String origin;
 
     FileToken(String user, String fileId, int tokenTimeout, boolean hasView, boolean hasEdit)
+    {
+        this(user, fileId, new Date().getTime(), tokenTimeout, hasView, hasEdit);
+    }
+
+    FileToken(String user, String fileId, long timestamp, int tokenTimeout, boolean hasView, boolean hasEdit)
     {
         this.user = user;
         this.fileId = fileId;
-        this.timestamp = new Date().getTime();
+        this.timestamp = timestamp;
         this.randomNumber = Math.abs(SECURE_RANDOM.nextInt());
+        this.value = String.format("wopi_%s_%s_%s_%s", this.user, this.fileId, this.timestamp, this.randomNumber);
         this.usage = 1;
         this.hasView = hasView;
         this.hasEdit = hasEdit;
         // Transform from hours to seconds.
         this.tokenTimeout = tokenTimeout * 3600;
+        this.lifetime = this.tokenTimeout;
+    }
+
+    /**
+     * Create a snapshot of the given token, e.g. in order to send it to the other members of the cluster.
+     *
+     * @param token the token to copy
+     */
+    FileToken(FileToken token)
+    {
+        this.user = token.user;
+        this.fileId = token.fileId;
+        this.timestamp = token.timestamp;
+        this.randomNumber = token.randomNumber;
+        this.value = token.value;
+        this.tokenTimeout = token.tokenTimeout;
+        this.lifetime = token.lifetime;
+        this.hasView = token.hasView;
+        this.hasEdit = token.hasEdit;
+        this.usage = token.usage;
+        this.actionMode = token.actionMode;
+        this.version = token.version;
+        this.origin = token.origin;
     }
 
     /**
@@ -82,6 +134,27 @@ public class FileToken
         return differenceInSec > this.tokenTimeout;
     }
 
+    /**
+     * Check if this token expired for so long that it can be forgotten. An expired token is kept during one more token
+     * lifetime, so that the editor can still extend it (e.g. after a save done with the expired token).
+     *
+     * @return {@code true} if this token expired more than one token lifetime ago, {@code false} otherwise
+     * @since 1.8.4
+     */
+    boolean isRemovable()
+    {
+        return System.currentTimeMillis() > getExpirationTime() + this.lifetime * 1000L;
+    }
+
+    /**
+     * @return the time, in milliseconds, after which this token is expired
+     * @since 1.8.4
+     */
+    public long getExpirationTime()
+    {
+        return this.timestamp + this.tokenTimeout * 1000L;
+    }
+
     /**
      * Get the number of places where this token is used (i.e. number of windows where the current file is edited by
      * this user).
@@ -173,10 +246,76 @@ public class FileToken
         return Objects.equals(ActionMode.EDIT, actionMode);
     }
 
+    /**
+     * Replace the default {@code String} representation of this token, e.g. with a signed one. This must be done
+     * before the token is stored.
+     *
+     * @param value the new {@code String} representation of this token
+     * @since 1.8.4
+     */
+    void setValue(String value)
+    {
+        this.value = value;
+    }
+
+    /**
+     * @return the number of changes made to this token
+     * @since 1.8.4
+     */
+    long getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * Record a change of this token. This must be done from inside the atomic operation that makes the change.
+     *
+     * @param version the number of changes made to this token
+     * @param origin the cluster member that made the change
+     * @since 1.8.4
+     */
+    void setVersion(long version, String origin)
+    {
+        this.version = version;
+        this.origin = origin;
+    }
+
+    /**
+     * @param other another state of the token of the same user for the same file
+     * @return {@code true} if this state is more recent than the given one, {@code false} otherwise
+     * @since 1.8.4
+     */
+    boolean isNewerThan(FileToken other)
+    {
+        if (!Objects.equals(this.value, other.value)) {
+            // The versions are only comparable for the same token: a member that removed its copy of the token (e.g.
+            // when it expired) creates the next token with a new version number.
+            return this.timestamp >= other.timestamp;
+        }
+        if (this.version != other.version) {
+            return this.version > other.version;
+        }
+        // Concurrent changes made by different members: pick the same winner on all the members.
+        return Objects.toString(this.origin, "").compareTo(Objects.toString(other.origin, "")) > 0;
+    }
+
+    /**
+     * @param other another state of this token
+     * @return {@code true} if the given state has the same value, expiration, rights, usage and action mode as this
+     *     one, {@code false} otherwise
+     * @since 1.8.4
+     */
+    boolean hasSameState(FileToken other)
+    {
+        return Objects.equals(this.value, other.value) && this.tokenTimeout == other.tokenTimeout
+            && this.hasView == other.hasView && this.hasEdit == other.hasEdit && this.usage == other.usage
+            && this.actionMode == other.actionMode;
+    }
+
     @Override
     public String toString()
     {
-        return String.format("wopi_%s_%s_%s_%s", this.user, this.fileId, this.timestamp, this.randomNumber);
+        return this.value;
     }
 
     @Override
@@ -0,0 +1,95 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
+
+/**
+ * Applies the token changes received from the other members of the cluster to the local copy of the tokens, and the
+ * revocations of signed tokens (which are sent whatever the token store).
+ *
+ * @version $Id$
+ * @since 1.8.4
+ * @see ClusterFileTokenStore
+ */
+@Component
+@Named(FileTokenEventListener.NAME)
+@Singleton
+public class FileTokenEventListener extends AbstractEventListener
+{
+    /**
+     * The name of this event listener.
+     */
+    public static final String NAME = "com.xwiki.collabora.internal.FileTokenEventListener";
+
+    @Inject
+    @Named(MemoryFileTokenStore.HINT)
+    private FileTokenStore localStore;
+
+    @Inject
+    private RemoteObservationManagerContext remoteObservationManagerContext;
+
+    @Inject
+    private SignedFileTokenCodec signedTokenCodec;
+
+    /**
+     * Default constructor.
+     */
+    public FileTokenEventListener()
+    {
+        super(NAME,
+            List.of(new FileTokenUpdatedEvent(), new FileTokenRemovedEvent(), new SignedFileTokenRevokedEvent()));
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        // Local changes are already applied by the store that sent the event.
+        if (!this.remoteObservationManagerContext.isRemoteState()) {
+            return;
+        }
+
+        if (event instanceof SignedFileTokenRevokedEvent) {
+            this.signedTokenCodec.revokeLocally((String) source, (Long) data);
+            return;
+        }
+
+        FileToken token = (FileToken) source;
+        boolean removed = event instanceof FileTokenRemovedEvent;
+        this.localStore.compute(token.getUser(), token.getFileId(), current -> {
+            // Ignore the changes that are older than the local state of the token, and the removal of a token that was
+            // already replaced locally.
+            if (current != null && (!token.isNewerThan(current)
+                || (removed && !token.toString().equals(current.toString())))) {
+                return current;
+            }
+            return removed ? null : token;
+        });
+    }
+}
@@ -19,9 +19,7 @@
  */
 package com.xwiki.collabora.internal;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -30,30 +28,34 @@ import javax.inject.Singleton;
 
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.AttachmentReferenceResolver;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReferenceSerializer;
-import org.xwiki.security.authorization.AuthorizationManager;
 import org.xwiki.security.authorization.Right;
 
 import com.xwiki.collabora.configuration.CollaboraConfiguration;
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
 
 /**
- * Manage existing {@link FileToken} instances.
+ * Manage existing {@link FileToken} instances. This component is called concurrently by the REST resources, so the
+ * lifecycle of a token (creation, usage increment and decrement, removal) is done through atomic operations on the
+ * configured {@link FileTokenStore}, without using a global lock.
  *
  * @version $Id$
  * @since 1.0
  */
 @Component(roles = FileTokenManager.class)
 @Singleton
-public class FileTokenManager
+public class FileTokenManager implements Initializable
 {
     private static final String XWIKI_GUEST = "XWiki.XWikiGuest";
 
-    private static final String VIEW_MODE_KEY = "view";
-
     @Inject
     private Logger logger;
 
@@ -65,7 +67,7 @@ public class FileTokenManager
     private DocumentReferenceResolver<String> documentReferenceResolver;
 
     @Inject
-    private AuthorizationManager authorizationManager;
+    private RightsCache rightsCache;
 
     @Inject
     @Named("current")
@@ -74,7 +76,28 @@ public class FileTokenManager
     @Inject
     private Provider<CollaboraConfiguration> configurationProvider;
 
-    private Map<String, FileToken> tokens = new HashMap<>();
+    @Inject
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @Inject
+    private ComponentManager componentManager;
+
+    @Inject
+    private SignedFileTokenCodec signedTokenCodec;
+
+    private FileTokenStore store;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String storeHint = this.instanceConfiguration.getTokenStore();
+        try {
+            this.store = this.componentManager.getInstance(FileTokenStore.class, storeHint);
+        } catch (ComponentLookupException e) {
+            throw new InitializationException(String.format("Failed to find the file token store [%s].", storeHint),
+                e);
+        }
+    }
 
     /**
      * Get {@link FileToken} corresponding to the given user and file, or create a new token in case it does not exist
@@ -87,33 +110,98 @@ public class FileTokenManager
      */
     public FileToken getToken(DocumentReference userReference, String fileId, String requestedMode)
     {
-        String user = userReference != null ? this.referenceSerializer.serialize(userReference) : XWIKI_GUEST;
-        FileToken token = getExistingToken(user, fileId);
-        if (token != null) {
-            token.setActionMode(ActionMode.fromString(requestedMode));
-            updateAccessRights(token);
-            if (token.isExpired()) {
-                tokens.remove(token.toString());
-            } else {
+        String user = getUser(userReference);
+        ActionMode actionMode = ActionMode.fromString(requestedMode);
+        // Compute the rights outside the atomic operation, since it can be slow.
+        boolean hasView = hasRight(Right.VIEW, user, fileId);
+        boolean hasEdit = ActionMode.EDIT.equals(actionMode) && hasRight(Right.EDIT, user, fileId);
+        int tokenTimeout = this.configurationProvider.get().getTokenTimeout();
+
+        boolean signed = this.signedTokenCodec.isEnabled();
+
+        return this.store.compute(user, fileId, token -> {
+            boolean isValid = token != null && !token.isExpired();
+            // The rights written in a signed token cannot be updated, so a new token is needed when they change.
+            if (isValid && (!signed || (token.hasView() == hasView && token.hasEdit() == hasEdit))) {
+                token.setActionMode(actionMode);
+                updateAccessRights(token, hasView, hasEdit);
                 token.setUsage(token.getUsage() + 1);
                 return token;
             }
-        }
 
-        return createNewToken(user, fileId, configurationProvider.get().getTokenTimeout(), requestedMode);
+            FileToken newToken = new FileToken(user, fileId, tokenTimeout, hasView, hasEdit);
+            newToken.setActionMode(actionMode);
+            if (isValid) {
+                newToken.setUsage(token.getUsage() + 1);
+            }
+            if (signed) {
+                newToken.setValue(this.signedTokenCodec.sign(newToken));
+            }
+            this.logger.debug("New token created for file [{}] and user [{}],", fileId, user);
+
+            return newToken;
+        });
     }
 
     /**
-     * Check if the given token has a valid form, exists, and it's not expired.
+     * Validate the given token and compute the current rights of its user on its file, in a single step.
      *
      * @param token {@code String} representation of a token
-     * @return {@code true} if the token is valid, {@code false} otherwise
+     * @return the validated session, or {@code null} if the token has an invalid form, doesn't exist, is expired, or
+     *     if its user can't access its file anymore
+     * @since 1.8.4
      */
-    public boolean isInvalid(String token)
+    public WopiSession resolve(String token)
     {
-        FileToken foundToken = tokens.get(token);
+        String user;
+        String fileId;
+        boolean editRequested;
+        FileToken fileToken = null;
+        if (this.signedTokenCodec.isSigned(token)) {
+            SignedFileToken signedToken = this.signedTokenCodec.verify(token);
+            if (signedToken == null || this.signedTokenCodec.isRevoked(token)) {
+                return null;
+            } else if (signedToken.isExpired()) {
+                // The token might have been extended since it was created.
+                FileToken storedToken = this.store.get(token);
+                if (storedToken == null || storedToken.isExpired()) {
+                    return null;
+                }
+            }
+            user = signedToken.getUser();
+            fileId = signedToken.getFileId();
+            // The rights written in a signed token are an upper bound of the current ones.
+            editRequested = signedToken.hasEdit();
+        } else {
+            fileToken = this.store.get(token);
+            if (fileToken == null || fileToken.isExpired()) {
+                return null;
+            }
+            user = fileToken.getUser();
+            fileId = fileToken.getFileId();
+            editRequested = fileToken.isEditRequested();
+        }
 
-        return foundToken == null || foundToken.isExpired();
+        // Check the current rights, since they might have changed after the token was created.
+        DocumentReference userReference = this.documentReferenceResolver.resolve(user);
+        AttachmentReference attachmentReference = this.attachmentReferenceResolver.resolve(fileId);
+        DocumentReference documentReference = attachmentReference.getDocumentReference();
+        boolean hasView = this.rightsCache.hasAccess(Right.VIEW, userReference, documentReference);
+        boolean hasEdit = editRequested && this.rightsCache.hasAccess(Right.EDIT, userReference, documentReference);
+        if (fileToken != null && (fileToken.hasView() != hasView || fileToken.hasEdit() != hasEdit)) {
+            this.store.compute(user, fileId, current -> {
+                // The token might have been replaced in the meantime.
+                if (current != null && token.equals(current.toString())) {
+                    updateAccessRights(current, hasView, hasEdit);
+                }
+                return current;
+            });
+        }
+
+        if (!hasView && !hasEdit) {
+            return null;
+        }
+        return new WopiSession(userReference, fileId, attachmentReference, hasView, hasEdit);
     }
 
     /**
@@ -125,8 +213,7 @@ public class FileTokenManager
      */
     public boolean isInvalid(String fileId, DocumentReference userReference)
     {
-        String user = userReference != null ? this.referenceSerializer.serialize(userReference) : XWIKI_GUEST;
-        FileToken token = getExistingToken(user, fileId);
+        FileToken token = getExistingToken(getUser(userReference), fileId);
 
         return token == null || token.isExpired();
     }
@@ -139,11 +226,13 @@ public class FileTokenManager
      */
     public void extendToken(String fileId, DocumentReference userReference)
     {
-        String user = userReference != null ? this.referenceSerializer.serialize(userReference) : XWIKI_GUEST;
-        FileToken fileToken = getExistingToken(user, fileId);
-        if (fileToken != null) {
-            fileToken.extendTokenTimeout(configurationProvider.get().getTokenTimeout());
-        }
+        int tokenTimeout = this.configurationProvider.get().getTokenTimeout();
+        this.store.compute(getUser(userReference), fileId, token -> {
+            if (token != null) {
+                token.extendTokenTimeout(tokenTimeout);
+            }
+            return token;
+        });
     }
 
     /**
@@ -157,134 +246,129 @@ public class FileTokenManager
      */
     public int clearToken(DocumentReference userReference, String fileId, String requestedMode)
     {
-        String user = userReference != null ? this.referenceSerializer.serialize(userReference) : XWIKI_GUEST;
-        FileToken foundToken = getExistingToken(user, fileId);
-        if (foundToken == null) {
+        String user = getUser(userReference);
+        if (getExistingToken(user, fileId) == null) {
             return 0;
         }
-        foundToken.setActionMode(ActionMode.fromString(requestedMode));
-        updateAccessRights(foundToken);
-        int tokenUsage = foundToken.getUsage();
-        if (tokenUsage > 1) {
-            tokenUsage--;
-            foundToken.setUsage(tokenUsage);
-            logger.debug("Cleared token for file [{}] and user [{}]. Number of remained usages: [{}]", fileId, user,
-                tokenUsage);
-        } else {
-            tokens.remove(foundToken.toString());
-            tokenUsage = 0;
-            logger.debug("Deleted token for file [{}] and user [{}].", fileId, user);
-        }
+        ActionMode actionMode = ActionMode.fromString(requestedMode);
+        boolean hasView = hasRight(Right.VIEW, user, fileId);
+        boolean hasEdit = ActionMode.EDIT.equals(actionMode) && hasRight(Right.EDIT, user, fileId);
+
+        AtomicInteger tokenUsage = new AtomicInteger();
+        this.store.compute(user, fileId, token -> {
+            if (token == null) {
+                return null;
+            }
+            token.setActionMode(actionMode);
+            updateAccessRights(token, hasView, hasEdit);
+            if (token.getUsage() > 1) {
+                token.setUsage(token.getUsage() - 1);
+                tokenUsage.set(token.getUsage());
+                this.logger.debug("Cleared token for file [{}] and user [{}]. Number of remained usages: [{}]",
+                    fileId, user, tokenUsage.get());
+                return token;
+            }
+
+            if (this.signedTokenCodec.isSigned(token.toString())) {
+                // A signed token is accepted without looking it up, so it has to be revoked explicitly.
+                this.signedTokenCodec.revoke(token.toString(), token.getExpirationTime());
+            }
+            this.logger.debug("Deleted token for file [{}] and user [{}].", fileId, user);
+            return null;
+        });
 
-        return tokenUsage;
+        return tokenUsage.get();
     }
 
     /**
-     * Extract the user reference from a token.
-     *
-     * @param token the token
-     * @return the user reference, or null in case this token is invalid
+     * @param fileId id of the edited file
+     * @param userReference {@link DocumentReference} user reference associated with the checked token
+     * @param requestedMode the requested action for the file
+     * @return {@code true} if this token has view or edit rights for accessing the file, {@code false} otherwise
      */
-    public DocumentReference getTokenUserDocReference(String token)
+    public boolean hasAccess(String fileId, DocumentReference userReference, String requestedMode)
     {
-        FileToken fileToken = tokens.get(token);
-        if (fileToken.getUser() == null) {
-            return null;
+        String user = getUser(userReference);
+        if (getExistingToken(user, fileId) == null) {
+            return false;
         }
-        return this.documentReferenceResolver.resolve(fileToken.getUser());
+        ActionMode actionMode = ActionMode.fromString(requestedMode);
+        boolean hasView = hasRight(Right.VIEW, user, fileId);
+        boolean hasEdit = ActionMode.EDIT.equals(actionMode) && hasRight(Right.EDIT, user, fileId);
+
+        FileToken fileToken = this.store.compute(user, fileId, token -> {
+            if (token != null) {
+                token.setActionMode(actionMode);
+                updateAccessRights(token, hasView, hasEdit);
+            }
+            return token;
+        });
+        return fileToken != null && (hasView || hasEdit);
     }
 
     /**
-     * @param token string representation of the token
-     * @return {@code true} if this token has edit rights, {@code false} otherwise
+     * @return the number of tokens currently stored
+     * @since 1.8.4
      */
-    public boolean hasWriteAccess(String token)
+    public int getTokenCount()
     {
-        return tokens.get(token).hasEdit();
+        return this.store.size();
     }
 
     /**
-     * @param token string representation of the token
-     * @return {@code true} if this token has view or edit rights for accessing the file, {@code false} otherwise
+     * @return the number of tokens that were removed because they expired, since the component was initialized
+     * @since 1.8.4
      */
-    public boolean hasAccess(String token)
+    public long getExpiredTokenCount()
     {
-        FileToken fileToken = tokens.get(token);
-        updateAccessRights(fileToken);
-        return fileToken.hasView() || fileToken.hasEdit();
+        return this.store.getExpiredCount();
     }
 
     /**
-     * @param fileId id of the edited file
-     * @param userReference {@link DocumentReference} user reference associated with the checked token
-     * @param requestedMode the requested action for the file
-     * @return {@code true} if this token has view or edit rights for accessing the file, {@code false} otherwise
+     * @return the number of valid tokens that were removed because the maximum number of tokens was reached, since the
+     *     component was initialized
+     * @since 1.8.4
      */
-    public boolean hasAccess(String fileId, DocumentReference userReference, String requestedMode)
+    public long getEvictedTokenCount()
     {
-        String user = userReference != null ? this.referenceSerializer.serialize(userReference) : XWIKI_GUEST;
-        FileToken fileToken = getExistingToken(user, fileId);
-        if (fileToken != null) {
-            fileToken.setActionMode(ActionMode.fromString(requestedMode));
-            updateAccessRights(fileToken);
-            return fileToken.hasView() || fileToken.hasEdit();
-        }
-        return false;
+        return this.store.getEvictedCount();
     }
 
     /**
      * Update token access rights in case they have been changed since the creation, e.g. you had edit right when you
      * first accessed the document with Collabora, but it has been denied since then, so you should not be able to edit
-     * anymore.
+     * anymore. This must be called from inside a {@link FileTokenStore#compute} call.
      *
      * @param fileToken the token
+     * @param hasView the current view right
+     * @param hasEdit the current edit right
      */
-    private void updateAccessRights(FileToken fileToken)
+    private void updateAccessRights(FileToken fileToken, boolean hasView, boolean hasEdit)
     {
-        AttachmentReference attachmentReference = this.attachmentReferenceResolver.resolve(fileToken.getFileId());
-
-        boolean hasView =
-            this.authorizationManager.hasAccess(Right.VIEW, this.documentReferenceResolver.resolve(fileToken.getUser()),
-                attachmentReference.getDocumentReference());
         if (hasView != fileToken.hasView()) {
             fileToken.setHasView(hasView);
             logger.debug("View right changed for existing token of file [{}]", fileToken.getFileId());
         }
-        boolean isEdit = false;
-        if (fileToken.isEditRequested()) {
-            isEdit = this.authorizationManager.hasAccess(Right.EDIT,
-                this.documentReferenceResolver.resolve(fileToken.getUser()),
-                attachmentReference.getDocumentReference());
-        }
-        if (isEdit != fileToken.hasEdit()) {
-            fileToken.setHasEdit(isEdit);
+        if (hasEdit != fileToken.hasEdit()) {
+            fileToken.setHasEdit(hasEdit);
             logger.debug("Edit right changed for existing token of file [{}]", fileToken.getFileId());
         }
     }
 
-    private FileToken getExistingToken(String user, String fileId)
+    private boolean hasRight(Right right, String user, String fileId)
     {
-        Optional<Map.Entry<String, FileToken>> tokenEntry = this.tokens.entrySet().stream()
-            .filter(x -> x.getValue().getUser().equals(user) && x.getValue().getFileId().equals(fileId)).findFirst();
+        AttachmentReference attachmentReference = this.attachmentReferenceResolver.resolve(fileId);
+        return this.rightsCache.hasAccess(right, this.documentReferenceResolver.resolve(user),
+            attachmentReference.getDocumentReference());
+    }
 
-        return tokenEntry.map(Map.Entry::getValue).orElse(null);
+    private String getUser(DocumentReference userReference)
+    {
+        return userReference != null ? this.referenceSerializer.serialize(userReference) : XWIKI_GUEST;
     }
 
-    private FileToken createNewToken(String user, String fileId, int tokenTimeout, String requestedMode)
+    private FileToken getExistingToken(String user, String fileId)
     {
-        AttachmentReference attachmentReference = this.attachmentReferenceResolver.resolve(fileId);
-        boolean isEdit = false;
-        if (!requestedMode.equals(VIEW_MODE_KEY)) {
-            isEdit = this.authorizationManager.hasAccess(Right.EDIT, this.documentReferenceResolver.resolve(user),
-                attachmentReference.getDocumentReference());
-        }
-        FileToken token = new FileToken(user, fileId, tokenTimeout,
-            this.authorizationManager.hasAccess(Right.VIEW, this.documentReferenceResolver.resolve(user),
-                attachmentReference.getDocumentReference()), isEdit);
-        token.setActionMode(ActionMode.fromString(requestedMode));
-        tokens.put(token.toString(), token);
-        logger.debug("New token created for file [{}] and user [{}],", fileId, user);
-
-        return token;
+        return this.store.get(user, fileId);
     }
 }
@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.util.function.UnaryOperator;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Stores the {@link FileToken} instances used to authenticate the WOPI requests. The implementation to use is
+ * configured with the {@code collabora.tokens.store} property of the {@code xwiki.properties} file.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Role
+public interface FileTokenStore
+{
+    /**
+     * @param token the {@code String} representation of a token
+     * @return the corresponding token, or {@code null} if it's not stored
+     */
+    FileToken get(String token);
+
+    /**
+     * @param user the serialized reference of the user
+     * @param fileId the id of the file
+     * @return the token of the given user for the given file, or {@code null} if it's not stored
+     */
+    FileToken get(String user, String fileId);
+
+    /**
+     * Atomically update the token of the given user for the given file. No other update of this token can happen
+     * while the function is executed, so it should be fast.
+     *
+     * @param user the serialized reference of the user
+     * @param fileId the id of the file
+     * @param function receives the current token (or {@code null} if there is none) and returns the token to store,
+     *     or {@code null} to remove the current token
+     * @return the stored token, or {@code null} if there is none
+     */
+    FileToken compute(String user, String fileId, UnaryOperator<FileToken> function);
+
+    /**
+     * @return the number of stored tokens
+     */
+    int size();
+
+    /**
+     * @return the number of tokens that were removed because they expired
+     */
+    long getExpiredCount();
+
+    /**
+     * @return the number of valid tokens that were removed because the maximum number of tokens was reached
+     */
+    long getEvictedCount();
+}
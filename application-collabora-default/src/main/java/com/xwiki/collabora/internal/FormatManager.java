@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Tells which file formats the configured Collabora server supports, for editing and for conversions, based on its
+ * discovery and its capabilities (which are both cached).
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Component(roles = FormatManager.class)
+@Singleton
+public class FormatManager
+{
+    @Inject
+    private DiscoveryManager discoveryManager;
+
+    @Inject
+    private CapabilitiesManager capabilitiesManager;
+
+    /**
+     * @return the action of the editor (i.e. {@code edit} or {@code view}) supported by the Collabora server for each
+     *     file extension
+     * @throws IOException if the discovery of the Collabora server could not be loaded
+     */
+    public Map<String, String> getEditorActions() throws IOException
+    {
+        return this.discoveryManager.getEditorActions();
+    }
+
+    /**
+     * @return {@code true} if the Collabora server can convert documents, or if this is not known, {@code false}
+     *     otherwise
+     */
+    public boolean isConversionAvailable()
+    {
+        return this.capabilitiesManager.isConversionAvailable();
+    }
+
+    /**
+     * @return the file extensions the Collabora server can convert, which is empty if it can't convert documents
+     * @throws IOException if the discovery of the Collabora server could not be loaded
+     */
+    public Set<String> getConversionInputFormats() throws IOException
+    {
+        return isConversionAvailable() ? this.discoveryManager.getExtensions() : Set.of();
+    }
+}
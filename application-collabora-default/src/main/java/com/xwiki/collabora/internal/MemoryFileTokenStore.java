@@ -0,0 +1,288 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+/**
+ * Keeps the tokens in the memory of this XWiki instance. Tokens are indexed both by value and by user and file, expired
+ * tokens are removed in the background, in the order of their expiration, and the number of tokens is bounded. An
+ * expired token is only removed once it's expired for a whole token lifetime, since the editor can still extend it
+ * (e.g. after saving with the expired token).
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Component
+@Named(MemoryFileTokenStore.HINT)
+@Singleton
+public class MemoryFileTokenStore implements FileTokenStore, Initializable, Disposable
+{
+    /**
+     * The hint of this component.
+     */
+    public static final String HINT = "memory";
+
+    private static final Comparator<ExpirationEntry> EXPIRATION_ORDER =
+        Comparator.comparingLong((ExpirationEntry entry) -> entry.expirationTime)
+            .thenComparing(entry -> entry.token.toString());
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    /**
+     * The stored tokens, by value, along with their position in the {@link #expirationQueue}.
+     */
+    private final Map<String, ExpirationEntry> tokens = new ConcurrentHashMap<>();
+
+    /**
+     * Index of the stored tokens by user and file id, so that looking up the token of a user for a given file doesn't
+     * require iterating over all the existing tokens. All the changes are done inside a {@code compute} call on this
+     * map, which also keeps the {@link #tokens} map and the {@link #expirationQueue} up to date.
+     */
+    private final Map<Pair<String, String>, FileToken> tokensByUserAndFile = new ConcurrentHashMap<>();
+
+    /**
+     * The stored tokens, ordered by their expiration time. The entries are immutable, since the order of a sorted set
+     * must not change while an element is part of it, so a new entry is added when the expiration time of a token
+     * changes.
+     */
+    private final NavigableSet<ExpirationEntry> expirationQueue = new ConcurrentSkipListSet<>(EXPIRATION_ORDER);
+
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    private ScheduledExecutorService sweeper;
+
+    private static final class ExpirationEntry
+    {
+        private final FileToken token;
+
+        private final long expirationTime;
+
+        ExpirationEntry(FileToken token)
+        {
+            this.token = token;
+            this.expirationTime = token.getExpirationTime();
+        }
+    }
+
+    @Override
+    public void initialize()
+    {
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("Collabora file token sweeper").daemon(true).build());
+        int sweepInterval = this.instanceConfiguration.getTokenSweepInterval();
+        this.sweeper.scheduleWithFixedDelay(this::removeExpiredTokens, sweepInterval, sweepInterval,
+            TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.sweeper.shutdownNow();
+    }
+
+    @Override
+    public FileToken get(String token)
+    {
+        ExpirationEntry entry = this.tokens.get(token);
+        return entry != null ? entry.token : null;
+    }
+
+    @Override
+    public FileToken get(String user, String fileId)
+    {
+        return this.tokensByUserAndFile.get(Pair.of(user, fileId));
+    }
+
+    @Override
+    public FileToken compute(String user, String fileId, UnaryOperator<FileToken> function)
+    {
+        FileToken result = this.tokensByUserAndFile.compute(Pair.of(user, fileId), (key, current) -> {
+            FileToken updated = function.apply(current);
+            if (current != null && current != updated) {
+                unregister(current);
+            }
+            if (updated != null) {
+                register(updated);
+            }
+            return updated;
+        });
+        enforceCapacity();
+
+        return result;
+    }
+
+    @Override
+    public int size()
+    {
+        return this.tokens.size();
+    }
+
+    @Override
+    public long getExpiredCount()
+    {
+        return this.expiredCount.get();
+    }
+
+    @Override
+    public long getEvictedCount()
+    {
+        return this.evictedCount.get();
+    }
+
+    /**
+     * Remove the tokens that are expired for a whole token lifetime, starting with the one that expired first, until a
+     * token that is still valid is found. This way only the expired tokens are visited, instead of all the stored
+     * tokens.
+     */
+    void removeExpiredTokens()
+    {
+        try {
+            for (ExpirationEntry entry : this.expirationQueue) {
+                if (!entry.token.isExpired()) {
+                    break;
+                }
+                if (entry.token.isRemovable() && remove(entry, false)) {
+                    this.expiredCount.incrementAndGet();
+                    this.logger.debug("Removed expired token for file [{}] and user [{}].", entry.token.getFileId(),
+                        entry.token.getUser());
+                }
+            }
+        } catch (Exception e) {
+            // Don't let the exception cancel the next executions.
+            this.logger.warn("Failed to remove the expired file tokens. Root cause: [{}]",
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    /**
+     * Evict the tokens closest to their expiration while there are more tokens than the configured limit.
+     */
+    private void enforceCapacity()
+    {
+        int maxCount = this.instanceConfiguration.getMaxTokenCount();
+        for (ExpirationEntry entry = first(); entry != null && this.tokens.size() > maxCount; entry = first()) {
+            if (remove(entry, true)) {
+                this.evictedCount.incrementAndGet();
+                this.logger.debug("Evicted token for file [{}] and user [{}] since the maximum number of tokens [{}]"
+                    + " was reached.", entry.token.getFileId(), entry.token.getUser(), maxCount);
+            }
+        }
+    }
+
+    private ExpirationEntry first()
+    {
+        // Don't use first() since the queue can be emptied concurrently.
+        Iterator<ExpirationEntry> iterator = this.expirationQueue.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * Atomically remove the token of the given entry, unless it was replaced or extended in the meantime.
+     *
+     * @param entry the entry of the token to remove
+     * @param evenIfValid {@code true} to remove the token even if it's not removable yet
+     * @return {@code true} if the token was removed, {@code false} otherwise
+     */
+    private boolean remove(ExpirationEntry entry, boolean evenIfValid)
+    {
+        FileToken token = entry.token;
+        AtomicBoolean removed = new AtomicBoolean();
+        this.tokensByUserAndFile.compute(Pair.of(token.getUser(), token.getFileId()), (key, current) -> {
+            if (current == token && (evenIfValid || token.isRemovable())) {
+                unregister(token);
+                removed.set(true);
+                return null;
+            }
+            // Make sure an outdated entry doesn't stay in the queue.
+            if (current != token || this.tokens.get(token.toString()) != entry) {
+                this.expirationQueue.remove(entry);
+            }
+            return current;
+        });
+        return removed.get();
+    }
+
+    /**
+     * Add the given token to the value map and to the expiration queue, or update its position in the queue if its
+     * expiration time changed. This must be called from inside a {@code compute} call on the
+     * {@link #tokensByUserAndFile} map.
+     *
+     * @param token the token to add
+     */
+    private void register(FileToken token)
+    {
+        ExpirationEntry entry = this.tokens.get(token.toString());
+        if (entry == null || entry.token != token || entry.expirationTime != token.getExpirationTime()) {
+            if (entry != null) {
+                this.expirationQueue.remove(entry);
+            }
+            ExpirationEntry newEntry = new ExpirationEntry(token);
+            this.tokens.put(token.toString(), newEntry);
+            this.expirationQueue.add(newEntry);
+        }
+    }
+
+    /**
+     * Remove the given token from the value map and from the expiration queue. This must be called from inside a
+     * {@code compute} call on the {@link #tokensByUserAndFile} map.
+     *
+     * @param token the token to remove
+     */
+    private void unregister(FileToken token)
+    {
+        ExpirationEntry entry = this.tokens.remove(token.toString());
+        if (entry != null) {
+            this.expirationQueue.remove(entry);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * New content of an attachment saved from Collabora, which is not saved in the wiki yet.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+public class PendingSave
+{
+    private final AttachmentReference attachmentReference;
+
+    private final SpooledContent content;
+
+    private final DocumentReference userReference;
+
+    private final Date date;
+
+    PendingSave(AttachmentReference attachmentReference, SpooledContent content, DocumentReference userReference)
+    {
+        this.attachmentReference = attachmentReference;
+        this.content = content;
+        this.userReference = userReference;
+        this.date = new Date();
+    }
+
+    /**
+     * @return the reference of the attachment to update
+     */
+    public AttachmentReference getAttachmentReference()
+    {
+        return this.attachmentReference;
+    }
+
+    /**
+     * @return a new stream on the content to save, which must be closed by the caller, or {@code null} if the content
+     *     was saved or replaced in the meantime. The content stays readable until the stream is closed.
+     * @throws IOException if the content could not be read
+     */
+    public InputStream openContentStream() throws IOException
+    {
+        return this.content.openStreamIfAvailable();
+    }
+
+    /**
+     * @return the size of the content to save, in bytes
+     */
+    public long getSize()
+    {
+        return this.content.getSize();
+    }
+
+    /**
+     * @return the user who saved the content last
+     */
+    public DocumentReference getUserReference()
+    {
+        return this.userReference;
+    }
+
+    /**
+     * @return the date when the content was saved from Collabora, which is also used as the date of the attachment
+     */
+    public Date getDate()
+    {
+        return this.date;
+    }
+
+    SpooledContent getContent()
+    {
+        return this.content;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+/**
+ * Caches the result of the rights checks done for the file tokens, since the same checks are repeated for each
+ * request made by the Collabora server. The cache is short-lived and cleared whenever rights or groups are modified.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ * @see RightsCacheInvalidationListener
+ */
+@Component(roles = RightsCache.class)
+@Singleton
+public class RightsCache implements Initializable, Disposable
+{
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private AuthorizationManager authorizationManager;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    private Cache<Boolean> cache;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        LRUCacheConfiguration configuration =
+            new LRUCacheConfiguration("collabora.rights", this.instanceConfiguration.getRightsCacheSize());
+        configuration.getLRUEvictionConfiguration().setLifespan(this.instanceConfiguration.getRightsCacheLifespan());
+        try {
+            this.cache = this.cacheManager.createNewCache(configuration);
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the Collabora rights cache.", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.cache.dispose();
+    }
+
+    /**
+     * Check if a user has a right on a document, using the cached result when available.
+     *
+     * @param right the right to check
+     * @param userReference the user
+     * @param documentReference the document
+     * @return {@code true} if the user has the given right on the document, {@code false} otherwise
+     * @see AuthorizationManager#hasAccess(Right, DocumentReference, org.xwiki.model.reference.EntityReference)
+     */
+    public boolean hasAccess(Right right, DocumentReference userReference, DocumentReference documentReference)
+    {
+        String user = userReference != null ? this.serializer.serialize(userReference) : "";
+        String document = this.serializer.serialize(documentReference);
+        // Prefix the user with its length, so that the key is not ambiguous.
+        String key = String.format("%s:%d:%s%s", right.getName(), user.length(), user, document);
+
+        Boolean hasAccess = this.cache.get(key);
+        if (hasAccess == null) {
+            hasAccess = this.authorizationManager.hasAccess(right, userReference, documentReference);
+            this.cache.set(key, hasAccess);
+        }
+        return hasAccess;
+    }
+
+    /**
+     * Remove all the cached results.
+     */
+    public void clear()
+    {
+        this.cache.removeAll();
+    }
+}
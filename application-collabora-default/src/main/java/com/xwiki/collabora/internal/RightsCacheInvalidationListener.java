@@ -0,0 +1,101 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.bridge.event.WikiDeletedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.LocalDocumentReference;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Clears the {@link RightsCache} when a document that can change the rights of a user is modified: a document holding
+ * rights or group members, or a preferences document. The remote events are handled too, so that the cache of each
+ * member of a cluster stays correct.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Component
+@Named(RightsCacheInvalidationListener.NAME)
+@Singleton
+public class RightsCacheInvalidationListener extends AbstractEventListener
+{
+    /**
+     * The name of this event listener.
+     */
+    public static final String NAME = "com.xwiki.collabora.internal.RightsCacheInvalidationListener";
+
+    private static final String XWIKI_SPACE = "XWiki";
+
+    private static final List<LocalDocumentReference> RIGHTS_CLASSES =
+        List.of(new LocalDocumentReference(XWIKI_SPACE, "XWikiRights"),
+            new LocalDocumentReference(XWIKI_SPACE, "XWikiGlobalRights"),
+            new LocalDocumentReference(XWIKI_SPACE, "XWikiGroups"));
+
+    private static final List<String> PREFERENCES_DOCUMENTS = List.of("XWikiPreferences", "WebPreferences");
+
+    @Inject
+    private RightsCache rightsCache;
+
+    /**
+     * Default constructor.
+     */
+    public RightsCacheInvalidationListener()
+    {
+        super(NAME, List.of(new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent(),
+            new WikiDeletedEvent()));
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (event instanceof WikiDeletedEvent) {
+            this.rightsCache.clear();
+        } else {
+            XWikiDocument document = (XWikiDocument) source;
+            if (affectsRights(document) || affectsRights(document.getOriginalDocument())) {
+                this.rightsCache.clear();
+            }
+        }
+    }
+
+    private boolean affectsRights(XWikiDocument document)
+    {
+        if (document == null) {
+            return false;
+        }
+        if (PREFERENCES_DOCUMENTS.contains(document.getDocumentReference().getName())) {
+            return true;
+        }
+        return RIGHTS_CLASSES.stream().anyMatch(classReference -> !document.getXObjects(classReference).isEmpty());
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+/**
+ * Merges the autosaves of an attachment that happen within the configured window, so that only the last content is
+ * saved in the wiki. This limits the number of document revisions (and database writes) when a file is edited by
+ * several users at the same time. The pending content is saved in the background, once the window is over, or right
+ * away when a regular save of the same attachment happens.
+ * <p>
+ * The pending content is kept by the cluster member that received the autosave. Until it's saved, the other members
+ * serve the content stored in the wiki, so in a cluster the WOPI requests of a file should be routed to the same
+ * member (sticky sessions), or the coalescing should be disabled.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Component(roles = SaveCoalescer.class)
+@Singleton
+public class SaveCoalescer implements Initializable, Disposable
+{
+    private static final int LOCK_COUNT = 64;
+
+    private static final long SHUTDOWN_TIMEOUT = 30;
+
+    @Inject
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @Inject
+    private Provider<AttachmentManager> attachmentManagerProvider;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private Logger logger;
+
+    private final Map<String, PendingSave> pendingSaves = new ConcurrentHashMap<>();
+
+    /**
+     * Serializes the saves of the same attachment, whether they are pending or not.
+     */
+    private final Object[] locks = new Object[LOCK_COUNT];
+
+    private long window;
+
+    private ScheduledExecutorService flusher;
+
+    @Override
+    public void initialize()
+    {
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new Object();
+        }
+        this.window = this.instanceConfiguration.getSaveCoalescingWindow();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+            new BasicThreadFactory.Builder().namingPattern("Collabora save flusher").daemon(true).build());
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.flusher = executor;
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        // Don't lose the pending content.
+        List<String> keys = new ArrayList<>(this.pendingSaves.keySet());
+        this.flusher.shutdown();
+        for (String key : keys) {
+            flush(key);
+        }
+        try {
+            this.flusher.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return {@code true} if the autosaves should be merged, {@code false} if they should be saved right away
+     */
+    public boolean isEnabled()
+    {
+        return this.window > 0;
+    }
+
+    /**
+     * @param attachmentReference the reference of an attachment
+     * @return the content waiting to be saved for the given attachment, or {@code null} if there is none
+     */
+    public PendingSave getPendingSave(AttachmentReference attachmentReference)
+    {
+        return this.pendingSaves.get(this.serializer.serialize(attachmentReference));
+    }
+
+    /**
+     * @param attachmentReference the reference of an attachment
+     * @return the lock to hold while saving the given attachment
+     */
+    Object getLock(AttachmentReference attachmentReference)
+    {
+        return this.locks[Math.floorMod(this.serializer.serialize(attachmentReference).hashCode(), LOCK_COUNT)];
+    }
+
+    /**
+     * Wait for the end of the window before saving the given content, replacing any content already waiting to be
+     * saved for the same attachment.
+     *
+     * @param pendingSave the content to save, which is owned by this component from now on
+     * @return the date of the given content
+     */
+    Date schedule(PendingSave pendingSave)
+    {
+        String key = this.serializer.serialize(pendingSave.getAttachmentReference());
+        synchronized (getLock(pendingSave.getAttachmentReference())) {
+            PendingSave previous = this.pendingSaves.put(key, pendingSave);
+            if (previous != null) {
+                // The previous content is replaced, and will be saved when its window is over.
+                previous.getContent().dispose();
+            } else {
+                try {
+                    this.flusher.schedule(() -> flush(key), this.window, TimeUnit.SECONDS);
+                } catch (RejectedExecutionException e) {
+                    // The component is being disposed so save right away.
+                    flush(key);
+                }
+            }
+        }
+        return pendingSave.getDate();
+    }
+
+    /**
+     * Discard the content waiting to be saved for the given attachment, because a newer content is being saved. The
+     * caller must hold the lock of the attachment.
+     *
+     * @param attachmentReference the reference of the attachment
+     */
+    void discard(AttachmentReference attachmentReference)
+    {
+        PendingSave pendingSave = this.pendingSaves.remove(this.serializer.serialize(attachmentReference));
+        if (pendingSave != null) {
+            pendingSave.getContent().dispose();
+        }
+    }
+
+    private void flush(String key)
+    {
+        PendingSave pendingSave = this.pendingSaves.get(key);
+        if (pendingSave == null) {
+            return;
+        }
+
+        synchronized (getLock(pendingSave.getAttachmentReference())) {
+            // Get the latest content, now that we hold the lock.
+            pendingSave = this.pendingSaves.remove(key);
+            if (pendingSave == null) {
+                return;
+            }
+
+            boolean newContext = this.execution.getContext() == null;
+            WikiReference previousWiki = null;
+            DocumentReference previousUser = null;
+            try {
+                if (newContext) {
+                    this.executionContextManager.initialize(new ExecutionContext());
+                }
+                XWikiContext xcontext = this.contextProvider.get();
+                previousWiki = xcontext.getWikiReference();
+                previousUser = xcontext.getUserReference();
+                xcontext.setWikiReference(
+                    pendingSave.getAttachmentReference().getDocumentReference().getWikiReference());
+                xcontext.setUserReference(pendingSave.getUserReference());
+                this.attachmentManagerProvider.get().saveAttachment(pendingSave);
+            } catch (Exception e) {
+                this.logger.error("Failed to save the content of the attachment [{}] that was saved from Collabora "
+                    + "at [{}]. Root cause: [{}]", key, pendingSave.getDate(), ExceptionUtils.getRootCauseMessage(e));
+            } finally {
+                pendingSave.getContent().dispose();
+                if (newContext) {
+                    this.execution.removeContext();
+                } else if (previousWiki != null) {
+                    // Restore the context of the current request.
+                    XWikiContext xcontext = this.contextProvider.get();
+                    xcontext.setWikiReference(previousWiki);
+                    xcontext.setUserReference(previousUser);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+/**
+ * The information carried by a signed file token, see {@link SignedFileTokenCodec}. Since the signature guarantees
+ * that this information was produced by XWiki, a signed token can be validated without looking it up.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+public class SignedFileToken
+{
+    private final String user;
+
+    private final String fileId;
+
+    private final long expirationTime;
+
+    private final boolean hasView;
+
+    private final boolean hasEdit;
+
+    SignedFileToken(String user, String fileId, long expirationTime, boolean hasView, boolean hasEdit)
+    {
+        this.user = user;
+        this.fileId = fileId;
+        this.expirationTime = expirationTime;
+        this.hasView = hasView;
+        this.hasEdit = hasEdit;
+    }
+
+    /**
+     * @return the user corresponding to this token
+     */
+    public String getUser()
+    {
+        return this.user;
+    }
+
+    /**
+     * @return the id of the file corresponding to this token
+     */
+    public String getFileId()
+    {
+        return this.fileId;
+    }
+
+    /**
+     * @return the time, in milliseconds, after which this token is expired, unless it was extended
+     */
+    public long getExpirationTime()
+    {
+        return this.expirationTime;
+    }
+
+    /**
+     * @return {@code true} if the token was created with view rights, {@code false} otherwise
+     */
+    public boolean hasView()
+    {
+        return this.hasView;
+    }
+
+    /**
+     * @return {@code true} if the token was created with edit rights, {@code false} otherwise
+     */
+    public boolean hasEdit()
+    {
+        return this.hasEdit;
+    }
+
+    /**
+     * @return {@code true} if the expiration time written in the token has passed, {@code false} otherwise
+     */
+    public boolean isExpired()
+    {
+        return System.currentTimeMillis() > this.expirationTime;
+    }
+}
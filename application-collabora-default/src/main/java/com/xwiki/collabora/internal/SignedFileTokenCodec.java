@@ -0,0 +1,268 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.observation.ObservationManager;
+
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+/**
+ * Produces and verifies stateless file tokens, which carry the user, the file, the expiration time and the rights of
+ * the user when the token was created, signed using HMAC-SHA256. The signing key is configured with the
+ * {@code collabora.tokens.signingKey} property of the {@code xwiki.properties} file and must be the same on all the
+ * members of a cluster. Signed tokens are disabled when no key is configured.
+ * <p>
+ * A signed token stays valid until it expires, unless it is revoked, e.g. when the last editor using it is closed. The
+ * revoked tokens are kept only until their expiration time, after which they are rejected anyway. Revocations are sent
+ * to the other members of the cluster with a {@link SignedFileTokenRevokedEvent}, which requires the remote observation
+ * to be enabled in {@code xwiki.properties}. The extensions of a signed token are only known by the other members when
+ * the tokens are stored with {@code collabora.tokens.store=cluster}; otherwise an extended token is only accepted past
+ * its signed expiration time by the member that extended it.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Component(roles = SignedFileTokenCodec.class)
+@Singleton
+public class SignedFileTokenCodec implements Initializable
+{
+    private static final String PREFIX = "wopi2_";
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final String SEPARATOR = "\n";
+
+    private static final String SIGNATURE_SEPARATOR = ".";
+
+    private static final char VIEW_FLAG = 'v';
+
+    private static final char EDIT_FLAG = 'e';
+
+    private static final char NO_FLAG = '-';
+
+    private static final int PART_COUNT = 4;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    @Inject
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    /**
+     * Use a provider since the observation manager loads the event listeners, which use this component.
+     */
+    @Inject
+    private Provider<ObservationManager> observationManagerProvider;
+
+    private SecretKeySpec key;
+
+    /**
+     * {@link Mac} instances are not thread safe, so each thread gets its own instance.
+     */
+    private ThreadLocal<Mac> mac;
+
+    /**
+     * The revoked tokens that are not expired yet, with their expiration time.
+     */
+    private final Map<String, Long> revokedTokens = new ConcurrentHashMap<>();
+
+    /**
+     * The revoked tokens, in the order of their expiration, so that they are forgotten without visiting all of them.
+     */
+    private final Queue<Map.Entry<String, Long>> revocationQueue =
+        new PriorityQueue<>(Map.Entry.comparingByValue());
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String signingKey = this.instanceConfiguration.getTokenSigningKey();
+        if (StringUtils.isNotEmpty(signingKey)) {
+            this.key = new SecretKeySpec(signingKey.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+            try {
+                // Fail early if the algorithm is not available.
+                createMac();
+            } catch (GeneralSecurityException e) {
+                throw new InitializationException("Failed to initialize the file token signature.", e);
+            }
+            this.mac = ThreadLocal.withInitial(() -> {
+                try {
+                    return createMac();
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return {@code true} if a signing key is configured, {@code false} otherwise
+     */
+    public boolean isEnabled()
+    {
+        return this.key != null;
+    }
+
+    /**
+     * @param token the {@code String} representation of a token
+     * @return {@code true} if the given token looks like a signed token, {@code false} otherwise
+     */
+    public boolean isSigned(String token)
+    {
+        return isEnabled() && token != null && token.startsWith(PREFIX);
+    }
+
+    /**
+     * @param token the token to sign
+     * @return the {@code String} representation of the signed token
+     */
+    public String sign(FileToken token)
+    {
+        // Encode the user and the file id, since they could contain the separator.
+        String payload = String.join(SEPARATOR, encode(token.getUser()), encode(token.getFileId()),
+            String.valueOf(token.getExpirationTime()),
+            new String(new char[] { token.hasView() ? VIEW_FLAG : NO_FLAG, token.hasEdit() ? EDIT_FLAG : NO_FLAG }));
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+
+        return PREFIX + ENCODER.encodeToString(payloadBytes) + SIGNATURE_SEPARATOR
+            + ENCODER.encodeToString(this.mac.get().doFinal(payloadBytes));
+    }
+
+    /**
+     * Check the signature of the given token and extract the information it carries. The expiration time is not
+     * checked.
+     *
+     * @param token the {@code String} representation of a signed token
+     * @return the information carried by the token, or {@code null} if the token is malformed or its signature is
+     *     invalid
+     */
+    public SignedFileToken verify(String token)
+    {
+        if (!isSigned(token)) {
+            return null;
+        }
+        int signatureIndex = token.lastIndexOf(SIGNATURE_SEPARATOR);
+        if (signatureIndex < PREFIX.length()) {
+            return null;
+        }
+
+        try {
+            byte[] payloadBytes = DECODER.decode(token.substring(PREFIX.length(), signatureIndex));
+            byte[] signature = DECODER.decode(token.substring(signatureIndex + 1));
+            if (!MessageDigest.isEqual(signature, this.mac.get().doFinal(payloadBytes))) {
+                return null;
+            }
+
+            String[] parts = new String(payloadBytes, StandardCharsets.UTF_8).split(SEPARATOR, -1);
+            if (parts.length != PART_COUNT || parts[3].length() != 2) {
+                return null;
+            }
+            String flags = parts[3];
+            return new SignedFileToken(decode(parts[0]), decode(parts[1]), Long.parseLong(parts[2]),
+                flags.charAt(0) == VIEW_FLAG, flags.charAt(1) == EDIT_FLAG);
+        } catch (IllegalArgumentException e) {
+            // Malformed token (NumberFormatException is an IllegalArgumentException).
+            return null;
+        }
+    }
+
+    /**
+     * Reject the given signed token until its expiration time, e.g. when it's not used anymore, on all the members of
+     * the cluster.
+     *
+     * @param token the {@code String} representation of a signed token
+     * @param expirationTime the time, in milliseconds, after which the token is expired
+     */
+    public void revoke(String token, long expirationTime)
+    {
+        revokeLocally(token, expirationTime);
+        this.observationManagerProvider.get().notify(new SignedFileTokenRevokedEvent(), token, expirationTime);
+    }
+
+    /**
+     * Reject the given signed token until its expiration time, only on this member of the cluster, e.g. when it was
+     * revoked by another member.
+     *
+     * @param token the {@code String} representation of a signed token
+     * @param expirationTime the time, in milliseconds, after which the token is expired
+     */
+    void revokeLocally(String token, long expirationTime)
+    {
+        synchronized (this.revocationQueue) {
+            // Forget the revoked tokens that expired in the meantime.
+            long now = System.currentTimeMillis();
+            while (!this.revocationQueue.isEmpty() && this.revocationQueue.peek().getValue() < now) {
+                Map.Entry<String, Long> expired = this.revocationQueue.poll();
+                this.revokedTokens.remove(expired.getKey(), expired.getValue());
+            }
+            if (expirationTime >= now) {
+                Long previousExpirationTime = this.revokedTokens.put(token, expirationTime);
+                if (previousExpirationTime == null || previousExpirationTime != expirationTime) {
+                    this.revocationQueue.add(Map.entry(token, expirationTime));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param token the {@code String} representation of a signed token
+     * @return {@code true} if the given token was revoked, {@code false} otherwise
+     */
+    public boolean isRevoked(String token)
+    {
+        return this.revokedTokens.containsKey(token);
+    }
+
+    private static String encode(String value)
+    {
+        return ENCODER.encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String value)
+    {
+        return new String(DECODER.decode(value), StandardCharsets.UTF_8);
+    }
+
+    private Mac createMac() throws GeneralSecurityException
+    {
+        Mac newMac = Mac.getInstance(ALGORITHM);
+        newMac.init(this.key);
+        return newMac;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+/**
+ * Content read from a stream, kept in memory when it's small and spooled to a temporary file otherwise, so that the
+ * memory used doesn't depend on the size of the content. The temporary file is removed once the content is disposed by
+ * its owner and all the streams opened on it are closed, so that the content can still be read while it's replaced.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+final class SpooledContent
+{
+    private final DeferredFileOutputStream data;
+
+    private final MessageDigest digest = DigestUtils.getSha256Digest();
+
+    private byte[] hash;
+
+    /**
+     * The number of users of the content: its owner, until it's disposed, and the streams that are not closed yet.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private final AtomicBoolean disposed = new AtomicBoolean();
+
+    private SpooledContent(DeferredFileOutputStream data)
+    {
+        this.data = data;
+    }
+
+    /**
+     * Read the given stream fully.
+     *
+     * @param content the content to read, which is not closed by this method
+     * @param threshold the size, in bytes, above which the content is written to a temporary file
+     * @param directory the directory where to create the temporary file
+     * @return the spooled content
+     * @throws IOException if the content could not be read
+     */
+    static SpooledContent spool(InputStream content, int threshold, File directory) throws IOException
+    {
+        DeferredFileOutputStream data = new DeferredFileOutputStream(threshold, "collabora-upload", null, directory);
+        SpooledContent spooledContent = new SpooledContent(data);
+        try {
+            try {
+                // Hash the content while reading it, so that it can be compared cheaply with the current one.
+                IOUtils.copy(new DigestInputStream(content, spooledContent.digest), data);
+            } finally {
+                data.close();
+            }
+            spooledContent.hash = spooledContent.digest.digest();
+        } catch (IOException e) {
+            spooledContent.dispose();
+            throw e;
+        }
+        return spooledContent;
+    }
+
+    /**
+     * @return a new stream on the content, which must be closed by the caller
+     * @throws IOException if the temporary file could not be opened, or if the content was disposed
+     */
+    InputStream openStream() throws IOException
+    {
+        InputStream stream = openStreamIfAvailable();
+        if (stream == null) {
+            throw new IOException("The content was disposed.");
+        }
+        return stream;
+    }
+
+    /**
+     * @return a new stream on the content, which must be closed by the caller, or {@code null} if the content was
+     *     disposed
+     * @throws IOException if the temporary file could not be opened
+     */
+    InputStream openStreamIfAvailable() throws IOException
+    {
+        if (this.data.isInMemory()) {
+            return new ByteArrayInputStream(this.data.getData());
+        }
+
+        // Keep the temporary file until the stream is closed.
+        int count;
+        do {
+            count = this.references.get();
+            if (count == 0) {
+                return null;
+            }
+        } while (!this.references.compareAndSet(count, count + 1));
+
+        try {
+            return new ProxyInputStream(Files.newInputStream(this.data.getFile().toPath()))
+            {
+                private final AtomicBoolean closed = new AtomicBoolean();
+
+                @Override
+                public void close() throws IOException
+                {
+                    try {
+                        super.close();
+                    } finally {
+                        if (this.closed.compareAndSet(false, true)) {
+                            release();
+                        }
+                    }
+                }
+            };
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the size of the content, in bytes
+     */
+    long getSize()
+    {
+        return this.data.getByteCount();
+    }
+
+    /**
+     * @return the SHA-256 hash of the content
+     */
+    byte[] getHash()
+    {
+        return this.hash;
+    }
+
+    /**
+     * Release the content, which is not used by its owner anymore. The temporary file, if any, is removed once the
+     * streams opened on it are closed.
+     */
+    void dispose()
+    {
+        if (this.disposed.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    private void release()
+    {
+        if (this.references.decrementAndGet() == 0 && !this.data.isInMemory()) {
+            FileUtils.deleteQuietly(this.data.getFile());
+        }
+    }
+}
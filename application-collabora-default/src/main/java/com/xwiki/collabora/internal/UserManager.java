@@ -19,29 +19,59 @@
  */
 package com.xwiki.collabora.internal;
 
+import java.awt.Color;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.LocalDocumentReference;
 import org.xwiki.user.UserProperties;
 import org.xwiki.user.UserPropertiesResolver;
 import org.xwiki.user.UserReferenceResolver;
 
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
 /**
- * Access properties of a user.
+ * Access properties of a user. The properties are cached, since the Collabora server asks for them each time a user
+ * opens a file, and the cache is cleared when the user profile is modified.
  *
  * @version $Id$
  * @since 1.2.2
+ * @see UserCacheInvalidationListener
  */
 @Component(roles = UserManager.class)
 @Singleton
-public class UserManager
+public class UserManager implements Initializable, Disposable
 {
+    /**
+     * The class of the user profiles.
+     */
+    static final LocalDocumentReference USER_CLASS = new LocalDocumentReference("XWiki", "XWikiUsers");
+
     @Inject
     @Named("document")
     private UserReferenceResolver<DocumentReference> userReferenceResolver;
@@ -49,11 +79,117 @@ public class UserManager
     @Inject
     private UserPropertiesResolver userPropertiesResolver;
 
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private DocumentAccessBridge documentAccessBridge;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @Inject
+    private Logger logger;
+
+    private Cache<UserInfo> cache;
+
+    /**
+     * The cached properties of a user.
+     */
+    private static final class UserInfo
+    {
+        private final String friendlyName;
+
+        private final AttachmentReference avatarReference;
+
+        private final String color;
+
+        UserInfo(String friendlyName, AttachmentReference avatarReference, String color)
+        {
+            this.friendlyName = friendlyName;
+            this.avatarReference = avatarReference;
+            this.color = color;
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.cache = this.cacheManager.createNewCache(
+                new LRUCacheConfiguration("collabora.users", this.instanceConfiguration.getUserCacheSize()));
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the Collabora user cache.", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.cache.dispose();
+    }
+
     /**
      * @param userDocReference user document reference
      * @return the name of the user in firstName lastName format
      */
     public String getUserFriendlyName(DocumentReference userDocReference)
+    {
+        return getUserInfo(userDocReference).friendlyName;
+    }
+
+    /**
+     * @param userDocReference user document reference
+     * @return the extra information displayed by Collabora for the given user, i.e. the URL of its avatar and its
+     *     color, or {@code null} if the extra information is disabled
+     * @since 1.8.4
+     */
+    public Map<String, String> getUserExtraInfo(DocumentReference userDocReference)
+    {
+        if (!this.instanceConfiguration.isUserExtraInfoEnabled()) {
+            return null;
+        }
+
+        UserInfo userInfo = getUserInfo(userDocReference);
+        Map<String, String> extraInfo = new LinkedHashMap<>();
+        if (userInfo.avatarReference != null) {
+            // The URL depends on the current request (e.g. the domain used), so it's not cached.
+            extraInfo.put("avatar", this.documentAccessBridge.getAttachmentURL(userInfo.avatarReference, true));
+        }
+        extraInfo.put("color", userInfo.color);
+        return extraInfo;
+    }
+
+    /**
+     * Remove the cached properties of a user.
+     *
+     * @param userDocReference user document reference
+     * @since 1.8.4
+     */
+    public void invalidate(DocumentReference userDocReference)
+    {
+        this.cache.remove(this.serializer.serialize(userDocReference));
+    }
+
+    private UserInfo getUserInfo(DocumentReference userDocReference)
+    {
+        String key = this.serializer.serialize(userDocReference);
+        UserInfo userInfo = this.cache.get(key);
+        if (userInfo == null) {
+            userInfo = new UserInfo(computeFriendlyName(userDocReference), getAvatarReference(userDocReference),
+                computeColor(key));
+            this.cache.set(key, userInfo);
+        }
+        return userInfo;
+    }
+
+    private String computeFriendlyName(DocumentReference userDocReference)
     {
         UserProperties userProperties = userPropertiesResolver.resolve(userReferenceResolver.resolve(userDocReference));
         String firstName = Objects.toString(userProperties.getFirstName(), "");
@@ -63,4 +199,34 @@ public class UserManager
         // Display the page name as a fallback for users without first and last name.
         return StringUtils.isEmpty(userFriendlyName) ? userDocReference.getName() : userFriendlyName;
     }
+
+    private AttachmentReference getAvatarReference(DocumentReference userDocReference)
+    {
+        if (!this.instanceConfiguration.isUserExtraInfoEnabled()) {
+            return null;
+        }
+
+        XWikiContext xcontext = this.contextProvider.get();
+        try {
+            XWikiDocument userDocument = xcontext.getWiki().getDocument(userDocReference, xcontext);
+            String avatar = userDocument.getStringValue(USER_CLASS, "avatar");
+            return StringUtils.isNotEmpty(avatar) && userDocument.getAttachment(avatar) != null
+                ? new AttachmentReference(avatar, userDocReference) : null;
+        } catch (XWikiException e) {
+            this.logger.warn("Failed to get the avatar of user [{}]. Root cause: [{}]", userDocReference,
+                ExceptionUtils.getRootCauseMessage(e));
+            return null;
+        }
+    }
+
+    /**
+     * @param user the serialized user reference
+     * @return a color that is always the same for a given user, so that the user is easy to recognize
+     */
+    private String computeColor(String user)
+    {
+        // Keep a fixed saturation and lightness, so that the colors are readable.
+        float hue = Math.floorMod(user.hashCode(), 360) / 360f;
+        return String.format("#%06x", Color.HSBtoRGB(hue, 0.6f, 0.8f) & 0xFFFFFF);
+    }
 }
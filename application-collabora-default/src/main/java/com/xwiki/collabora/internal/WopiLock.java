@@ -0,0 +1,73 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.Serializable;
+
+/**
+ * A WOPI lock on a file, which expires if it's not refreshed.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+public final class WopiLock implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String value;
+
+    private final long expirationTime;
+
+    /**
+     * Create a new lock.
+     *
+     * @param value the lock identifier, chosen by the Collabora server
+     * @param expirationTime the time when the lock expires, in milliseconds
+     */
+    public WopiLock(String value, long expirationTime)
+    {
+        this.value = value;
+        this.expirationTime = expirationTime;
+    }
+
+    /**
+     * @return the lock identifier, chosen by the Collabora server
+     */
+    public String getValue()
+    {
+        return this.value;
+    }
+
+    /**
+     * @return the time when the lock expires, in milliseconds
+     */
+    public long getExpirationTime()
+    {
+        return this.expirationTime;
+    }
+
+    /**
+     * @return {@code true} if the lock expired, {@code false} otherwise
+     */
+    public boolean isExpired()
+    {
+        return System.currentTimeMillis() > this.expirationTime;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.ObservationManager;
+
+/**
+ * Keeps the WOPI locks taken by the Collabora server on the edited files, so that concurrent editing sessions don't
+ * overwrite each other's changes. A lock expires after 30 minutes unless it's refreshed, as required by the WOPI
+ * protocol. The locks are indexed by the serialized reference of the locked attachment, so that the same file is
+ * always found under the same key, whatever the form of the file id used by the request.
+ * <p>
+ * The lock changes are sent to the other members of the cluster as remote events (see {@link WopiLockEventListener}),
+ * when the remote observation is enabled in {@code xwiki.properties}. Since each member applies the changes it
+ * receives, two members locking the same file at the very same time is not detected.
+ * <p>
+ * The operations return {@code null} when they succeed, and the value of the current lock otherwise (an empty string
+ * if the file is not locked), which must be sent back to the Collabora server in the {@code X-WOPI-Lock} header.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Component(roles = WopiLockManager.class)
+@Singleton
+public class WopiLockManager
+{
+    private static final long LOCK_DURATION = TimeUnit.MINUTES.toMillis(30);
+
+    private static final String NO_LOCK = "";
+
+    @Inject
+    private ObservationManager observationManager;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    private final Map<String, WopiLock> locks = new ConcurrentHashMap<>();
+
+    /**
+     * The locks in the order of their expiration, which is the order in which they were taken or refreshed since they
+     * all have the same duration. This way the expired locks are forgotten without visiting the whole lock table.
+     */
+    private final Queue<Pair<String, WopiLock>> expirationQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param file the reference of a file
+     * @return the value of the current lock of the file, or an empty string if the file is not locked
+     */
+    public String getLock(AttachmentReference file)
+    {
+        WopiLock lock = this.locks.get(getKey(file));
+        return lock != null && !lock.isExpired() ? lock.getValue() : NO_LOCK;
+    }
+
+    /**
+     * Lock a file, or refresh its lock if it's already locked with the same value.
+     *
+     * @param file the reference of the file
+     * @param value the value of the new lock
+     * @param oldValue the value of the current lock to replace, or {@code null} if the file should not be locked
+     * @return {@code null} if the file was locked, or the value of the conflicting lock
+     */
+    public String lock(AttachmentReference file, String value, String oldValue)
+    {
+        // Forget the locks that were not released, e.g. because the Collabora server was stopped.
+        removeExpiredLocks();
+
+        String expectedValue = oldValue != null ? oldValue : NO_LOCK;
+        return update(getKey(file), current -> {
+            String currentValue = current != null && !current.isExpired() ? current.getValue() : NO_LOCK;
+            return currentValue.equals(expectedValue) || currentValue.equals(value);
+        }, value);
+    }
+
+    /**
+     * Extend the expiration time of a lock.
+     *
+     * @param file the reference of the file
+     * @param value the value of the current lock
+     * @return {@code null} if the lock was refreshed, or the value of the conflicting lock
+     */
+    public String refreshLock(AttachmentReference file, String value)
+    {
+        return update(getKey(file), current -> isLockedWith(current, value), value);
+    }
+
+    /**
+     * Unlock a file.
+     *
+     * @param file the reference of the file
+     * @param value the value of the current lock
+     * @return {@code null} if the file was unlocked, or the value of the conflicting lock
+     */
+    public String unlock(AttachmentReference file, String value)
+    {
+        return update(getKey(file), current -> isLockedWith(current, value), null);
+    }
+
+    /**
+     * Check if a file can be modified with the given lock.
+     *
+     * @param file the reference of the file
+     * @param value the lock sent with the modification, or {@code null}
+     * @return {@code null} if the file is not locked or is locked with the given value, or the value of the
+     *     conflicting lock
+     */
+    public String checkLock(AttachmentReference file, String value)
+    {
+        String currentValue = getLock(file);
+        return currentValue.isEmpty() || currentValue.equals(value) ? null : currentValue;
+    }
+
+    /**
+     * Apply a lock change received from another member of the cluster.
+     *
+     * @param key the serialized reference of the file
+     * @param lock the new lock, or {@code null} if the file was unlocked
+     */
+    void apply(String key, WopiLock lock)
+    {
+        if (lock != null) {
+            this.locks.put(key, lock);
+            this.expirationQueue.add(Pair.of(key, lock));
+        } else {
+            this.locks.remove(key);
+        }
+    }
+
+    private String getKey(AttachmentReference file)
+    {
+        return this.serializer.serialize(file);
+    }
+
+    private void removeExpiredLocks()
+    {
+        synchronized (this.expirationQueue) {
+            Pair<String, WopiLock> entry = this.expirationQueue.peek();
+            while (entry != null && entry.getRight().isExpired()) {
+                this.expirationQueue.poll();
+                // Only remove the lock if it was not refreshed or replaced in the meantime.
+                this.locks.remove(entry.getLeft(), entry.getRight());
+                entry = this.expirationQueue.peek();
+            }
+        }
+    }
+
+    private boolean isLockedWith(WopiLock lock, String value)
+    {
+        return lock != null && !lock.isExpired() && lock.getValue().equals(value);
+    }
+
+    private String update(String fileKey, Predicate<WopiLock> condition, String newValue)
+    {
+        AtomicReference<String> conflict = new AtomicReference<>();
+        WopiLock newLock = newValue != null ? new WopiLock(newValue, System.currentTimeMillis() + LOCK_DURATION) : null;
+        this.locks.compute(fileKey, (key, current) -> {
+            if (condition.test(current)) {
+                if (newLock != null) {
+                    this.expirationQueue.add(Pair.of(key, newLock));
+                }
+                return newLock;
+            }
+            conflict.set(current != null && !current.isExpired() ? current.getValue() : NO_LOCK);
+            return current;
+        });
+
+        if (conflict.get() != null) {
+            return conflict.get();
+        }
+        this.observationManager.notify(new WopiLockChangedEvent(), fileKey, newLock);
+        return null;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The result of the validation of a file token, used to handle a WOPI request: the user and file the token was
+ * created for, and the current rights of the user on this file.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ * @see FileTokenManager#resolve(String)
+ */
+public final class WopiSession
+{
+    private final DocumentReference userReference;
+
+    private final String fileId;
+
+    private final AttachmentReference attachmentReference;
+
+    private final boolean hasView;
+
+    private final boolean hasEdit;
+
+    WopiSession(DocumentReference userReference, String fileId, AttachmentReference attachmentReference,
+        boolean hasView, boolean hasEdit)
+    {
+        this.userReference = userReference;
+        this.fileId = fileId;
+        this.attachmentReference = attachmentReference;
+        this.hasView = hasView;
+        this.hasEdit = hasEdit;
+    }
+
+    /**
+     * @return the user the token was created for
+     */
+    public DocumentReference getUserReference()
+    {
+        return this.userReference;
+    }
+
+    /**
+     * @return the id of the file the token was created for
+     */
+    public String getFileId()
+    {
+        return this.fileId;
+    }
+
+    /**
+     * @return the reference of the file the token was created for
+     */
+    public AttachmentReference getAttachmentReference()
+    {
+        return this.attachmentReference;
+    }
+
+    /**
+     * @return {@code true} if the user can view the file, {@code false} otherwise
+     */
+    public boolean hasView()
+    {
+        return this.hasView;
+    }
+
+    /**
+     * @return {@code true} if the token was created for editing the file and the user can still edit it, {@code false}
+     *     otherwise
+     */
+    public boolean hasEdit()
+    {
+        return this.hasEdit;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal.configuration;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * Collabora configuration that is specific to this XWiki instance rather than to a wiki (e.g. resource limits), read
+ * from the {@code xwiki.properties} file.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Component(roles = CollaboraInstanceConfiguration.class)
+@Singleton
+public class CollaboraInstanceConfiguration
+{
+    private static final String PREFIX = "collabora.";
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource xwikiProperties;
+
+    /**
+     * @return the hint of the {@link com.xwiki.collabora.internal.FileTokenStore} used to store the file tokens, e.g.
+     *     {@code memory} (the default) or {@code cluster} when the WOPI requests can reach any member of a cluster
+     */
+    public String getTokenStore()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "tokens.store", "memory");
+    }
+
+    /**
+     * @return the key used to sign the file tokens, or an empty string to use tokens that are only known by the
+     *     {@link com.xwiki.collabora.internal.FileTokenStore}; signed tokens can be validated without any lookup. In a
+     *     cluster, the revocations of signed tokens are sent to all the members, but their extensions are only shared
+     *     when the {@code cluster} token store is used
+     */
+    public String getTokenSigningKey()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "tokens.signingKey", "");
+    }
+
+    /**
+     * @return the maximum number of file tokens kept in memory; when this limit is reached, the tokens closest to
+     *     their expiration are evicted first
+     */
+    public int getMaxTokenCount()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "tokens.maxCount", 100000);
+    }
+
+    /**
+     * @return the number of seconds between two runs of the task that removes the expired file tokens
+     */
+    public int getTokenSweepInterval()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "tokens.sweepInterval", 60);
+    }
+
+    /**
+     * @return the number of seconds after which the cached discovery of the Collabora server is refreshed
+     */
+    public int getDiscoveryTimeToLive()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "discovery.timeToLive", 3600);
+    }
+
+    /**
+     * @return the maximum number of connections opened to the Collabora server for converting documents
+     */
+    public int getConversionMaxConnections()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.maxConnections", 20);
+    }
+
+    /**
+     * @return the maximum number of connections opened to the same Collabora server URL for converting documents
+     */
+    public int getConversionMaxConnectionsPerRoute()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.maxConnectionsPerRoute", 10);
+    }
+
+    /**
+     * @return the number of seconds to wait for a connection to the Collabora server, when converting documents
+     */
+    public int getConversionConnectTimeout()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.connectTimeout", 10);
+    }
+
+    /**
+     * @return the maximum number of seconds of inactivity while waiting for the result of a conversion
+     */
+    public int getConversionSocketTimeout()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.socketTimeout", 300);
+    }
+
+    /**
+     * @return the maximum number of seconds an idle connection to the Collabora server is kept open for the next
+     *     conversions
+     */
+    public int getConversionKeepAlive()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.keepAlive", 60);
+    }
+
+    /**
+     * @return the maximum number of conversions sent to the Collabora server at the same time
+     */
+    public int getConversionMaxConcurrency()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.maxConcurrency", 4);
+    }
+
+    /**
+     * @return the maximum number of conversions waiting for a free slot, on top of the running ones
+     */
+    public int getConversionQueueSize()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.queueSize", 50);
+    }
+
+    /**
+     * @return the maximum number of seconds a conversion can take, including the time spent waiting in the queue
+     */
+    public int getConversionTimeout()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.timeout", 600);
+    }
+
+    /**
+     * @return what to do with a new conversion when the queue is full: {@code wait} (the default) for a free slot
+     *     until the conversion times out, or {@code reject} it right away
+     */
+    public String getConversionQueuePolicy()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.queuePolicy", "wait");
+    }
+
+    /**
+     * @return the maximum size, in megabytes, of the cache of conversion results stored on disk, or {@code 0} (the
+     *     default) to disable the cache
+     */
+    public long getConversionCacheMaxSize()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.cache.maxSize", 0L);
+    }
+
+    /**
+     * @return the size, in bytes, above which the files sent to the Collabora server for conversion and the conversion
+     *     results are written to the work directory instead of being kept in memory
+     */
+    public int getConversionMemoryThreshold()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.memoryThreshold", 1024 * 1024);
+    }
+
+    /**
+     * @return the maximum size, in megabytes, of the conversion results held in the work directory, above which new
+     *     conversions are refused until the previous results are released
+     */
+    public long getConversionWorkDirectoryMaxSize()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.workDirectory.maxSize", 1024L);
+    }
+
+    /**
+     * @return the number of seconds between two runs of the task that removes the files left in the conversion work
+     *     directory by the conversions that were not cleaned up
+     */
+    public int getConversionWorkDirectorySweepInterval()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.workDirectory.sweepInterval", 300);
+    }
+
+    /**
+     * @return the maximum number of entries of a conversion result received as a ZIP archive (e.g. an HTML document
+     *     with its images), above which the conversion fails
+     */
+    public int getConversionArchiveMaxEntries()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.archive.maxEntries", 10000);
+    }
+
+    /**
+     * @return the maximum total size, in megabytes, of the uncompressed files of a conversion result received as a ZIP
+     *     archive, above which the conversion fails
+     */
+    public long getConversionArchiveMaxSize()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "conversion.archive.maxSize", 512L);
+    }
+
+    /**
+     * @return the size, in bytes, above which the content of a file saved from Collabora is spooled to a temporary
+     *     file instead of being kept in memory
+     */
+    public int getUploadMemoryThreshold()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "upload.memoryThreshold", 1024 * 1024);
+    }
+
+    /**
+     * @return the number of seconds during which the autosaves of a file are merged before being saved in the wiki, or
+     *     {@code 0} (the default) to save each of them right away. The merged content is only known by the cluster
+     *     member that received it until it's saved, see {@link com.xwiki.collabora.internal.SaveCoalescer}
+     */
+    public int getSaveCoalescingWindow()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "save.coalescingWindow", 0);
+    }
+
+    /**
+     * @return the maximum number of rights checks whose result is cached
+     */
+    public int getRightsCacheSize()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "rights.cacheSize", 10000);
+    }
+
+    /**
+     * @return the number of seconds after which the cached result of a rights check expires, even if no rights were
+     *     modified
+     */
+    public int getRightsCacheLifespan()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "rights.cacheLifespan", 60);
+    }
+
+    /**
+     * @return the maximum number of users whose properties (e.g. display name) are cached
+     */
+    public int getUserCacheSize()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "users.cacheSize", 1000);
+    }
+
+    /**
+     * @return {@code true} if the avatar and color of the users should be sent to the Collabora server, {@code false}
+     *     otherwise
+     */
+    public boolean isUserExtraInfoEnabled()
+    {
+        return this.xwikiProperties.getProperty(PREFIX + "users.extraInfo", false);
+    }
+}
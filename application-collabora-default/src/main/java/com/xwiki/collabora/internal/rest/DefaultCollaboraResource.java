@@ -19,6 +19,7 @@
  */
 package com.xwiki.collabora.internal.rest;
 
+import java.io.IOException;
 import java.util.Map;
 
 import javax.inject.Inject;
@@ -29,17 +30,22 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.WikiReference;
 import org.xwiki.rest.XWikiRestException;
 import org.xwiki.security.authorization.AccessDeniedException;
 import org.xwiki.security.authorization.ContextualAuthorizationManager;
 import org.xwiki.security.authorization.Right;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+import org.xwiki.wiki.manager.WikiManagerException;
 
 import com.xpn.xwiki.XWikiContext;
+import com.xwiki.collabora.internal.FormatManager;
 import com.xwiki.collabora.rest.CollaboraResource;
 
 /**
@@ -63,6 +69,12 @@ public class DefaultCollaboraResource implements CollaboraResource
     @Named("current")
     private DocumentReferenceResolver<String> referenceResolver;
 
+    @Inject
+    private FormatManager formatManager;
+
+    @Inject
+    private WikiDescriptorManager wikiDescriptorManager;
+
     @Inject
     private Logger logger;
 
@@ -83,4 +95,47 @@ public class DefaultCollaboraResource implements CollaboraResource
             throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
         }
     }
+
+    @Override
+    public Response getFormats(String wiki) throws XWikiRestException
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+        WikiReference previousWiki = xcontext.getWikiReference();
+        try {
+            if (StringUtils.isNotBlank(wiki)) {
+                // Use the configuration of the given wiki, since the REST resource is rooted on the main wiki.
+                xcontext.setWikiReference(getViewableWiki(wiki));
+            }
+            Map<String, Object> conversion = Map.of("available", this.formatManager.isConversionAvailable(),
+                "inputFormats", this.formatManager.getConversionInputFormats());
+            return Response.ok(Map.of("actions", this.formatManager.getEditorActions(), "conversion", conversion))
+                .type(MediaType.APPLICATION_JSON).build();
+        } catch (IOException e) {
+            logger.warn("Failed to get the formats supported by the Collabora server. Root cause: [{}]",
+                ExceptionUtils.getRootCauseMessage(e));
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            // Restore the context of the current request.
+            xcontext.setWikiReference(previousWiki);
+        }
+    }
+
+    private WikiReference getViewableWiki(String wiki)
+    {
+        try {
+            if (!this.wikiDescriptorManager.exists(wiki)) {
+                throw new WebApplicationException(Response.Status.NOT_FOUND);
+            }
+            WikiReference wikiReference = new WikiReference(wiki);
+            this.contextualAuthorizationManager.checkAccess(Right.VIEW, wikiReference);
+            return wikiReference;
+        } catch (AccessDeniedException e) {
+            logger.warn("User has no view rights on the wiki: [{}].", wiki);
+            throw new WebApplicationException(Response.Status.UNAUTHORIZED);
+        } catch (WikiManagerException e) {
+            logger.warn("Failed to check if the wiki [{}] exists. Root cause: [{}]", wiki,
+                ExceptionUtils.getRootCauseMessage(e));
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        }
+    }
 }
@@ -20,35 +20,54 @@
 package com.xwiki.collabora.internal.rest;
 
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Base64;
+import java.util.Date;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.AttachmentReferenceResolver;
+import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.rest.XWikiRestException;
 import org.xwiki.rest.internal.resources.pages.ModifiablePageResource;
 
 import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.web.XWikiRequest;
+import com.xwiki.collabora.internal.ActionMode;
 import com.xwiki.collabora.internal.AttachmentManager;
 import com.xwiki.collabora.internal.DiscoveryManager;
 import com.xwiki.collabora.internal.FileTokenManager;
+import com.xwiki.collabora.internal.PendingSave;
+import com.xwiki.collabora.internal.SaveCoalescer;
 import com.xwiki.collabora.internal.UserManager;
+import com.xwiki.collabora.internal.WopiLockManager;
+import com.xwiki.collabora.internal.WopiSession;
 import com.xwiki.collabora.rest.Wopi;
 import com.xwiki.collabora.rest.model.jaxb.ObjectFactory;
 import com.xwiki.collabora.rest.model.jaxb.Token;
@@ -66,8 +85,48 @@ public class DefaultWopi extends ModifiablePageResource implements Wopi
 {
     private static final String LAST_MODIFIED_TIME = "LastModifiedTime";
 
-    // Collabora server needs time in ISO8601 round-trip time format, to include fractional seconds.
-    private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSSSS");
+    private static final String IS_AUTOSAVE = "X-COOL-WOPI-IsAutosave";
+
+    private static final String IS_EXIT_SAVE = "X-COOL-WOPI-IsExitSave";
+
+    private static final String WOPI_OVERRIDE = "X-WOPI-Override";
+
+    private static final String WOPI_LOCK = "X-WOPI-Lock";
+
+    private static final String LOCK = "LOCK";
+
+    private static final String REFRESH_LOCK = "REFRESH_LOCK";
+
+    private static final String UNLOCK = "UNLOCK";
+
+    private static final String SUGGESTED_TARGET = "X-WOPI-SuggestedTarget";
+
+    private static final String RELATIVE_TARGET = "X-WOPI-RelativeTarget";
+
+    private static final String ACCESS_TOKEN = "access_token";
+
+    private static final int NOT_IMPLEMENTED = 501;
+
+    private static final String RANGE = "Range";
+
+    private static final String IF_RANGE = "If-Range";
+
+    private static final String CONTENT_RANGE = "Content-Range";
+
+    private static final String ACCEPT_RANGES = "Accept-Ranges";
+
+    private static final String BYTES = "bytes";
+
+    private static final String BYTES_UNIT = BYTES + '=';
+
+    private static final int PARTIAL_CONTENT = 206;
+
+    private static final int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
+    // Collabora server needs time in ISO8601 round-trip time format, to include fractional seconds. Unlike
+    // SimpleDateFormat, the formatter is immutable so it can be shared by concurrent requests.
+    private static final DateTimeFormatter LAST_MODIFIED_TIME_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSS'Z'").withZone(ZoneOffset.UTC);
 
     @Inject
     private Provider<XWikiContext> contextProvider;
@@ -81,6 +140,12 @@ public class DefaultWopi extends ModifiablePageResource implements Wopi
     @Inject
     private AttachmentManager attachmentManager;
 
+    @Inject
+    private SaveCoalescer saveCoalescer;
+
+    @Inject
+    private WopiLockManager lockManager;
+
     @Inject
     private Logger logger;
 
@@ -97,26 +162,33 @@ public class DefaultWopi extends ModifiablePageResource implements Wopi
     @Override
     public Response get(String fileId, String token) throws XWikiRestException
     {
-        String decodedToken = new String(Base64.getUrlDecoder().decode(token));
-        String decodedFileId = new String(Base64.getUrlDecoder().decode(fileId));
-
-        if (token == null || fileTokenManager.isInvalid(decodedToken) || !fileTokenManager.hasAccess(decodedToken)) {
+        String decodedFileId = decode(fileId);
+        WopiSession session = resolveSession(decodedFileId, token);
+        if (session == null) {
             logger.warn("Failed to get file [{}] due to invalid token or restricted rights.", decodedFileId);
             throw new WebApplicationException(Response.Status.UNAUTHORIZED);
         }
 
-        AttachmentReference attachmentReference = this.attachmentReferenceResolver.resolve(decodedFileId);
+        AttachmentReference attachmentReference = session.getAttachmentReference();
         try {
             XWikiAttachment attachment = attachmentManager.getAttachment(attachmentReference);
             JSONObject message = new JSONObject();
             message.put("BaseFileName", attachmentReference.getName());
-            message.put("Size", String.valueOf(attachment.getLongSize()));
-            message.put("UserCanWrite", fileTokenManager.hasWriteAccess(decodedToken));
-            message.put("UserId",
-                referenceSerializer.serialize(fileTokenManager.getTokenUserDocReference(decodedToken)));
-            message.put("UserFriendlyName",
-                userManager.getUserFriendlyName(fileTokenManager.getTokenUserDocReference(decodedToken)));
-            message.put(LAST_MODIFIED_TIME, dateFormat.format(attachment.getDate()));
+            // Describe the content that is not saved in the wiki yet, if any, since it's the one Collabora will get.
+            PendingSave pendingSave = saveCoalescer.getPendingSave(attachmentReference);
+            message.put("Size",
+                String.valueOf(pendingSave != null ? pendingSave.getSize() : attachment.getLongSize()));
+            message.put("UserCanWrite", session.hasEdit());
+            message.put("SupportsLocks", true);
+            message.put("SupportsGetLock", true);
+            message.put("UserId", referenceSerializer.serialize(session.getUserReference()));
+            message.put("UserFriendlyName", userManager.getUserFriendlyName(session.getUserReference()));
+            Map<String, String> userExtraInfo = userManager.getUserExtraInfo(session.getUserReference());
+            if (userExtraInfo != null) {
+                message.put("UserExtraInfo", userExtraInfo);
+            }
+            message.put(LAST_MODIFIED_TIME,
+                formatLastModifiedTime(pendingSave != null ? pendingSave.getDate() : attachment.getDate()));
             // Needed for using the PostMessage API.
             XWikiRequest wikiRequest = contextProvider.get().getRequest();
             String postMessageOrigin = String.format("%s://%s:%s", wikiRequest.getScheme(), wikiRequest.getServerName(),
@@ -135,21 +207,59 @@ public class DefaultWopi extends ModifiablePageResource implements Wopi
     @Override
     public Response getContents(String fileId, String token) throws XWikiRestException
     {
-        String decodedToken = new String(Base64.getUrlDecoder().decode(token));
-        String decodedFileId = new String(Base64.getUrlDecoder().decode(fileId));
-
-        if (fileTokenManager.isInvalid(decodedToken) || !fileTokenManager.hasAccess(decodedToken)) {
+        String decodedFileId = decode(fileId);
+        WopiSession session = resolveSession(decodedFileId, token);
+        if (session == null) {
             logger.warn("Failed to get content of file [{}] due to invalid token or restricted rights.", decodedFileId);
             return Response.status(Response.Status.UNAUTHORIZED).build();
         }
 
         XWikiContext xcontext = this.contextProvider.get();
-        AttachmentReference attachmentReference = this.attachmentReferenceResolver.resolve(decodedFileId);
+        AttachmentReference attachmentReference = session.getAttachmentReference();
         try {
+            PendingSave pendingSave = saveCoalescer.getPendingSave(attachmentReference);
+            InputStream pendingContent = pendingSave != null ? pendingSave.openContentStream() : null;
+            // Get the attachment after the pending content, so that it's up to date if that content was saved in the
+            // meantime.
             XWikiAttachment attachment = attachmentManager.getAttachment(attachmentReference);
+            if (pendingContent != null) {
+                // Serve the latest content, which is not saved in the wiki yet.
+                return Response.ok().entity(pendingContent).type(attachment.getMimeType())
+                    .lastModified(pendingSave.getDate()).build();
+            }
 
-            return Response.ok().entity(attachment.getContentInputStream(xcontext)).type(attachment.getMimeType())
-                .build();
+            XWikiRequest request = xcontext.getRequest();
+            String etag = getETag(attachment);
+
+            // Let Collabora reload an unchanged file without transferring (and loading) its content again.
+            if (isNotModified(request, etag, attachment.getDate())) {
+                return Response.notModified().header(HttpHeaders.ETAG, etag).build();
+            }
+
+            long size = attachment.getLongSize();
+            long[] range = getRange(request, etag, attachment.getDate(), size);
+            if (range == null) {
+                return Response.ok().entity(attachment.getContentInputStream(xcontext)).type(attachment.getMimeType())
+                    .header(HttpHeaders.ETAG, etag).lastModified(attachment.getDate())
+                    .header(ACCEPT_RANGES, BYTES).build();
+            } else if (range.length == 0) {
+                return Response.status(REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(CONTENT_RANGE, String.format("bytes */%d", size)).build();
+            }
+
+            InputStream content = attachment.getContentInputStream(xcontext);
+            try {
+                IOUtils.skipFully(content, range[0]);
+            } catch (IOException | RuntimeException e) {
+                content.close();
+                throw e;
+            }
+            long length = range[1] - range[0] + 1;
+            return Response.status(PARTIAL_CONTENT).entity(new BoundedInputStream(content, length))
+                .type(attachment.getMimeType()).header(HttpHeaders.ETAG, etag).lastModified(attachment.getDate())
+                .header(ACCEPT_RANGES, BYTES)
+                .header(CONTENT_RANGE, String.format("bytes %d-%d/%d", range[0], range[1], size))
+                .header(HttpHeaders.CONTENT_LENGTH, length).build();
         } catch (Exception e) {
             logger.warn("Failed to get content of file [{}]. Root cause: [{}]", decodedFileId,
                 ExceptionUtils.getRootCauseMessage(e));
@@ -157,29 +267,324 @@ public class DefaultWopi extends ModifiablePageResource implements Wopi
         }
     }
 
+    /**
+     * Validate the token of a WOPI request once, and check that it was created for the requested file.
+     *
+     * @param decodedFileId the id of the requested file
+     * @param token the Base64 encoded token
+     * @return the validated session, or {@code null} if the token can't be used to access the requested file
+     */
+    private WopiSession resolveSession(String decodedFileId, String token)
+    {
+        if (token == null) {
+            return null;
+        }
+        WopiSession session = fileTokenManager.resolve(decode(token));
+        return session != null && session.getFileId().equals(decodedFileId) ? session : null;
+    }
+
+    private String decode(String value)
+    {
+        return new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param attachment an attachment
+     * @return a strong entity tag that changes each time the attachment is updated
+     */
+    private String getETag(XWikiAttachment attachment)
+    {
+        return String.format("\"%s-%d\"", attachment.getVersion(), attachment.getDate().getTime());
+    }
+
+    private boolean isNotModified(XWikiRequest request, String etag, Date lastModified)
+    {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            // The entity tags take precedence over the modification date.
+            return matches(ifNoneMatch, etag);
+        }
+
+        Date ifModifiedSince = parseDate(request.getHeader(HttpHeaders.IF_MODIFIED_SINCE));
+        // The HTTP dates don't have milliseconds.
+        return ifModifiedSince != null && lastModified.getTime() / 1000 <= ifModifiedSince.getTime() / 1000;
+    }
+
+    private boolean matches(String header, String etag)
+    {
+        for (String candidate : header.split(",")) {
+            String value = StringUtils.removeStart(candidate.trim(), "W/");
+            if ("*".equals(value) || etag.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse the {@code Range} header, only supporting a single byte range.
+     *
+     * @return the first and last positions of the requested range, an empty array if the range can't be satisfied,
+     *     or {@code null} if the whole content must be returned
+     */
+    private long[] getRange(XWikiRequest request, String etag, Date lastModified, long size)
+    {
+        String range = request.getHeader(RANGE);
+        if (range == null || !range.startsWith(BYTES_UNIT) || range.indexOf(',') >= 0) {
+            return null;
+        }
+        // Only send a part of the content if it didn't change since the client got the other parts.
+        String ifRange = request.getHeader(IF_RANGE);
+        if (ifRange != null && !matchesIfRange(ifRange.trim(), etag, lastModified)) {
+            return null;
+        }
+
+        String spec = range.substring(BYTES_UNIT.length()).trim();
+        int separator = spec.indexOf('-');
+        if (separator < 0) {
+            return null;
+        }
+        String start = spec.substring(0, separator).trim();
+        String end = spec.substring(separator + 1).trim();
+        try {
+            long first;
+            long last = size - 1;
+            if (start.isEmpty()) {
+                // The last bytes of the content are requested.
+                first = Math.max(0, size - Long.parseLong(end));
+            } else {
+                first = Long.parseLong(start);
+                if (!end.isEmpty()) {
+                    long requestedLast = Long.parseLong(end);
+                    if (requestedLast < first) {
+                        return null;
+                    }
+                    last = Math.min(last, requestedLast);
+                }
+            }
+            return first <= last ? new long[] { first, last } : new long[0];
+        } catch (NumberFormatException e) {
+            // Invalid ranges are ignored.
+            return null;
+        }
+    }
+
+    /**
+     * The {@code If-Range} header holds either an entity tag, which must be strong and match exactly, or the date the
+     * client got the other parts of the content, which must match the modification date.
+     */
+    private boolean matchesIfRange(String ifRange, String etag, Date lastModified)
+    {
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        Date date = parseDate(ifRange);
+        // The HTTP dates don't have milliseconds.
+        return date != null && lastModified.getTime() / 1000 == date.getTime() / 1000;
+    }
+
+    /**
+     * @param date a date
+     * @return the given date in the format expected by the Collabora server, safe to call concurrently
+     */
+    static String formatLastModifiedTime(Date date)
+    {
+        return LAST_MODIFIED_TIME_FORMAT.format(date.toInstant());
+    }
+
+    private Date parseDate(String value)
+    {
+        if (value != null) {
+            try {
+                return Date.from(ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant());
+            } catch (DateTimeParseException e) {
+                // Invalid dates are ignored.
+            }
+        }
+        return null;
+    }
+
     @Override
-    public Response postContents(String fileId, String token, byte[] body) throws XWikiRestException
+    public Response postFile(String fileId, String token, InputStream body) throws XWikiRestException
+    {
+        String decodedFileId = decode(fileId);
+        WopiSession session = resolveSession(decodedFileId, token);
+        if (session == null || !session.hasEdit()) {
+            logger.warn("Failed to execute an operation on file [{}] due to invalid token or restricted rights.",
+                decodedFileId);
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        XWikiRequest request = contextProvider.get().getRequest();
+        String operation = request.getHeader(WOPI_OVERRIDE);
+        if ("PUT_RELATIVE".equals(operation)) {
+            return putRelativeFile(session, request, body);
+        }
+
+        AttachmentReference file = session.getAttachmentReference();
+        String lock = request.getHeader(WOPI_LOCK);
+        String conflictingLock;
+        if ("GET_LOCK".equals(operation)) {
+            return Response.ok().header(WOPI_LOCK, lockManager.getLock(file)).build();
+        } else if (!StringUtils.equalsAny(operation, LOCK, REFRESH_LOCK, UNLOCK)) {
+            return Response.status(NOT_IMPLEMENTED).build();
+        } else if (StringUtils.isEmpty(lock)) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        } else if (LOCK.equals(operation)) {
+            conflictingLock = lockManager.lock(file, lock, request.getHeader("X-WOPI-OldLock"));
+        } else if (REFRESH_LOCK.equals(operation)) {
+            conflictingLock = lockManager.refreshLock(file, lock);
+        } else {
+            conflictingLock = lockManager.unlock(file, lock);
+        }
+
+        if (conflictingLock != null) {
+            logger.debug("Failed to execute [{}] on file [{}] because it's locked by [{}].", operation,
+                decodedFileId, conflictingLock);
+            return Response.status(Response.Status.CONFLICT).header(WOPI_LOCK, conflictingLock).build();
+        }
+        return Response.ok().build();
+    }
+
+    /**
+     * Create a new attachment next to the edited file, with the content sent by Collabora (e.g. for the "Save As"
+     * action), so that the file doesn't need to be downloaded and uploaded again by the browser.
+     *
+     * @param session the session of the edited file
+     * @param request the current request
+     * @param body the content of the new file
+     * @return the name and the WOPI URL of the new file
+     * @throws XWikiRestException if the new file could not be saved
+     */
+    private Response putRelativeFile(WopiSession session, XWikiRequest request, InputStream body)
+        throws XWikiRestException
+    {
+        String suggestedTarget = request.getHeader(SUGGESTED_TARGET);
+        String relativeTarget = request.getHeader(RELATIVE_TARGET);
+        // The two headers are mutually exclusive.
+        if (StringUtils.isEmpty(suggestedTarget) == StringUtils.isEmpty(relativeTarget)) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        AttachmentReference sourceReference = session.getAttachmentReference();
+        DocumentReference documentReference = sourceReference.getDocumentReference();
+        try {
+            String name;
+            if (StringUtils.isNotEmpty(relativeTarget)) {
+                name = UTF7Utils.decode(relativeTarget);
+                if (exists(new AttachmentReference(name, documentReference))
+                    && !Boolean.parseBoolean(request.getHeader("X-WOPI-OverwriteRelativeTarget")))
+                {
+                    return Response.status(Response.Status.CONFLICT).header("X-WOPI-ValidRelativeTarget",
+                        UTF7Utils.encode(getAvailableName(documentReference, name))).build();
+                }
+            } else {
+                name = UTF7Utils.decode(suggestedTarget);
+                // A suggested target starting with a dot is only the extension of the new file.
+                if (name.startsWith(".")) {
+                    name = FilenameUtils.getBaseName(sourceReference.getName()) + name;
+                }
+                name = getAvailableName(documentReference, name);
+            }
+
+            AttachmentReference attachmentReference = new AttachmentReference(name, documentReference);
+            String newFileId = referenceSerializer.serialize(attachmentReference);
+            String conflictingLock = lockManager.checkLock(attachmentReference, null);
+            if (conflictingLock != null) {
+                logger.debug("Failed to overwrite file [{}] because it's locked by [{}].", newFileId, conflictingLock);
+                return Response.status(Response.Status.CONFLICT).header(WOPI_LOCK, conflictingLock).build();
+            }
+
+            // The content is streamed to the new attachment, as for the updates of the edited file.
+            attachmentManager.createOrUpdateAttachment(attachmentReference, body, session.getUserReference());
+
+            String newToken =
+                fileTokenManager.getToken(session.getUserReference(), newFileId, ActionMode.EDIT.name()).toString();
+            Base64.Encoder encoder = Base64.getUrlEncoder();
+            URI url = this.uriInfo.getBaseUriBuilder().path(Wopi.class)
+                .queryParam(ACCESS_TOKEN, encoder.encodeToString(newToken.getBytes(StandardCharsets.UTF_8)))
+                .build(encoder.encodeToString(newFileId.getBytes(StandardCharsets.UTF_8)));
+
+            JSONObject response = new JSONObject();
+            response.put("Name", name);
+            response.put("Url", url.toString());
+
+            return Response.status(Response.Status.OK).entity(response.toString()).type(MediaType.APPLICATION_JSON)
+                .build();
+        } catch (Exception e) {
+            logger.warn("Failed to create a file next to [{}]. Root cause: [{}]", sourceReference,
+                ExceptionUtils.getRootCauseMessage(e));
+            throw new XWikiRestException(e);
+        }
+    }
+
+    /**
+     * @param documentReference the document holding the new attachment
+     * @param name the wanted name of the new attachment
+     * @return the given name if no attachment has it yet, otherwise the first available name with a number appended
+     *     before the extension, e.g. {@code file (1).docx}
+     * @throws XWikiException if the existing attachments could not be read
+     */
+    private String getAvailableName(DocumentReference documentReference, String name) throws XWikiException
     {
-        String decodedToken = new String(Base64.getUrlDecoder().decode(token));
-        String decodedFileId = new String(Base64.getUrlDecoder().decode(fileId));
+        String baseName = FilenameUtils.removeExtension(name);
+        String extension = name.substring(baseName.length());
+        String availableName = name;
+        for (int i = 1; exists(new AttachmentReference(availableName, documentReference)); i++) {
+            availableName = String.format("%s (%d)%s", baseName, i, extension);
+        }
+        return availableName;
+    }
 
-        if (fileTokenManager.isInvalid(decodedToken) || !fileTokenManager.hasAccess(decodedToken)) {
-            logger.warn("Failed to update file [{}] due to invalid token or restricted rights.", decodedFileId);
+    private boolean exists(AttachmentReference attachmentReference) throws XWikiException
+    {
+        return attachmentManager.getAttachment(attachmentReference) != null
+            || saveCoalescer.getPendingSave(attachmentReference) != null;
+    }
+
+    @Override
+    public Response postContents(String fileId, String token, InputStream body) throws XWikiRestException
+    {
+        String decodedFileId = decode(fileId);
+        WopiSession session = resolveSession(decodedFileId, token);
+        if (session == null) {
+            logger.warn("Failed to update file [{}] due to invalid token.", decodedFileId);
             // As the cause of a failure in updating the content may be an expired token, we return 200 status code for
             // now since the UNAUTHORIZED message should be returned after trying first to extend the token.
             // For this, subsequently to this request, an attempt to extend the token validity is done and only if
             // this is not possible (e.g. due to insufficient rights) the correct UNAUTHORIZED message is returned.
             // This is needed since we couldn't find a way to renew the token before the save request done by Collabora.
             return Response.status(Response.Status.OK).type(MediaType.APPLICATION_JSON).build();
+        } else if (!session.hasEdit()) {
+            // A valid token without edit right won't get it by being extended.
+            logger.warn("Failed to update file [{}] due to restricted rights.", decodedFileId);
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        XWikiRequest request = contextProvider.get().getRequest();
+        // Don't overwrite the changes made in another editing session that locked the file.
+        String conflictingLock =
+            lockManager.checkLock(session.getAttachmentReference(), request.getHeader(WOPI_LOCK));
+        if (conflictingLock != null) {
+            logger.debug("Failed to update file [{}] because it's locked by [{}].", decodedFileId, conflictingLock);
+            return Response.status(Response.Status.CONFLICT).header(WOPI_LOCK, conflictingLock).build();
         }
 
         try {
-            XWikiAttachment attachment =
-                attachmentManager.createOrUpdateAttachment(this.attachmentReferenceResolver.resolve(decodedFileId),
-                    body, fileTokenManager.getTokenUserDocReference(decodedToken));
+            AttachmentReference attachmentReference = session.getAttachmentReference();
+            DocumentReference userReference = session.getUserReference();
+            Date lastModified;
+            // Exit saves are never delayed, since the editing session is over.
+            if (saveCoalescer.isEnabled() && Boolean.parseBoolean(request.getHeader(IS_AUTOSAVE))
+                && !Boolean.parseBoolean(request.getHeader(IS_EXIT_SAVE))) {
+                lastModified = attachmentManager.updateAttachmentLater(attachmentReference, body, userReference);
+            } else {
+                lastModified =
+                    attachmentManager.createOrUpdateAttachment(attachmentReference, body, userReference).getDate();
+            }
 
             JSONObject response = new JSONObject();
-            response.put(LAST_MODIFIED_TIME, dateFormat.format(attachment.getDate()));
+            response.put(LAST_MODIFIED_TIME, formatLastModifiedTime(lastModified));
 
             return Response.status(Response.Status.OK).entity(response.toString()).type(MediaType.APPLICATION_JSON)
                 .build();
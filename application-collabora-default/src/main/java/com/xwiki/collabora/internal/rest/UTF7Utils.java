@@ -0,0 +1,118 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal.rest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Encodes and decodes the UTF-7 (RFC 2152) values used by the WOPI headers that hold file names, since HTTP headers
+ * are restricted to ASCII characters.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+final class UTF7Utils
+{
+    private static final char SHIFT = '+';
+
+    private static final char UNSHIFT = '-';
+
+    private UTF7Utils()
+    {
+    }
+
+    /**
+     * @param value a UTF-7 encoded value
+     * @return the decoded value
+     */
+    static String decode(String value)
+    {
+        StringBuilder result = new StringBuilder(value.length());
+        int i = 0;
+        while (i < value.length()) {
+            char c = value.charAt(i);
+            if (c != SHIFT) {
+                result.append(c);
+                i++;
+                continue;
+            }
+
+            int end = i + 1;
+            while (end < value.length() && isBase64(value.charAt(end))) {
+                end++;
+            }
+            if (end == i + 1) {
+                // "+-" stands for "+".
+                result.append(SHIFT);
+            } else {
+                try {
+                    byte[] bytes = Base64.getDecoder().decode(value.substring(i + 1, end));
+                    result.append(new String(bytes, 0, bytes.length & ~1, StandardCharsets.UTF_16BE));
+                } catch (IllegalArgumentException e) {
+                    // Keep the invalid sequence as is.
+                    result.append(value, i, end);
+                }
+            }
+            i = end < value.length() && value.charAt(end) == UNSHIFT ? end + 1 : end;
+        }
+        return result.toString();
+    }
+
+    /**
+     * @param value a value
+     * @return the UTF-7 encoded value
+     */
+    static String encode(String value)
+    {
+        StringBuilder result = new StringBuilder(value.length());
+        int i = 0;
+        while (i < value.length()) {
+            char c = value.charAt(i);
+            if (c == SHIFT) {
+                result.append(SHIFT).append(UNSHIFT);
+                i++;
+            } else if (isDirect(c)) {
+                result.append(c);
+                i++;
+            } else {
+                int end = i + 1;
+                while (end < value.length() && !isDirect(value.charAt(end)) && value.charAt(end) != SHIFT) {
+                    end++;
+                }
+                result.append(SHIFT).append(Base64.getEncoder().withoutPadding()
+                    .encodeToString(value.substring(i, end).getBytes(StandardCharsets.UTF_16BE))).append(UNSHIFT);
+                i = end;
+            }
+        }
+        return result.toString();
+    }
+
+    private static boolean isDirect(char c)
+    {
+        // Printable ASCII characters, except the ones that are not safe in the UTF-7 optional direct characters.
+        return c >= ' ' && c <= '}' && c != '\\';
+    }
+
+    private static boolean isBase64(char c)
+    {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+' || c == '/';
+    }
+}
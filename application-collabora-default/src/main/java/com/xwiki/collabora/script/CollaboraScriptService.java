@@ -25,9 +25,11 @@ import javax.inject.Singleton;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.script.service.ScriptService;
+import org.xwiki.script.service.ScriptServiceManager;
 import org.xwiki.stability.Unstable;
 
 import com.xwiki.collabora.configuration.CollaboraConfiguration;
+import com.xwiki.collabora.internal.FileTokenManager;
 
 /**
  * Collabora script services.
@@ -36,14 +38,27 @@ import com.xwiki.collabora.configuration.CollaboraConfiguration;
  * @since 1.1
  */
 @Component
-@Named("collabora")
+@Named(CollaboraScriptService.ROLE_HINT)
 @Singleton
 @Unstable
 public class CollaboraScriptService implements ScriptService
 {
+    /**
+     * The role hint of this component.
+     *
+     * @since 1.8.4
+     */
+    public static final String ROLE_HINT = "collabora";
+
     @Inject
     private CollaboraConfiguration configuration;
 
+    @Inject
+    private FileTokenManager fileTokenManager;
+
+    @Inject
+    private ScriptServiceManager scriptServiceManager;
+
     /**
      * @return the Collabora configuration
      * @since 1.1
@@ -53,4 +68,49 @@ public class CollaboraScriptService implements ScriptService
     {
         return configuration;
     }
+
+    /**
+     * Get a sub script service, e.g. {@code $services.collabora.conversion}.
+     *
+     * @param <S> the type of the sub script service
+     * @param serviceName the name of the sub script service
+     * @return the sub script service, or {@code null} if it's not available
+     * @since 1.8.4
+     */
+    @Unstable
+    @SuppressWarnings("unchecked")
+    public <S extends ScriptService> S get(String serviceName)
+    {
+        return (S) this.scriptServiceManager.get(ROLE_HINT + '.' + serviceName);
+    }
+
+    /**
+     * @return the number of file tokens currently stored
+     * @since 1.8.4
+     */
+    @Unstable
+    public int getTokenCount()
+    {
+        return this.fileTokenManager.getTokenCount();
+    }
+
+    /**
+     * @return the number of file tokens that were removed because they expired
+     * @since 1.8.4
+     */
+    @Unstable
+    public long getExpiredTokenCount()
+    {
+        return this.fileTokenManager.getExpiredTokenCount();
+    }
+
+    /**
+     * @return the number of valid file tokens that were removed because the maximum number of tokens was reached
+     * @since 1.8.4
+     */
+    @Unstable
+    public long getEvictedTokenCount()
+    {
+        return this.fileTokenManager.getEvictedTokenCount();
+    }
 }
@@ -0,0 +1,154 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.document.DocumentAuthors;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.user.UserReferenceResolver;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link AttachmentManager}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class AttachmentManagerTest
+{
+    private static final byte[] CONTENT = "current content".getBytes(StandardCharsets.UTF_8);
+
+    private static final DocumentReference DOCUMENT_REFERENCE = new DocumentReference("wiki", "Space", "Page");
+
+    private static final AttachmentReference ATTACHMENT_REFERENCE =
+        new AttachmentReference("file.odt", DOCUMENT_REFERENCE);
+
+    private static final DocumentReference USER_REFERENCE = new DocumentReference("wiki", "XWiki", "Alice");
+
+    @InjectMockComponents
+    private AttachmentManager attachmentManager;
+
+    @MockComponent
+    private Provider<XWikiContext> contextProvider;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @MockComponent
+    private SaveCoalescer saveCoalescer;
+
+    @MockComponent
+    @Named("document")
+    private UserReferenceResolver<DocumentReference> userReferenceResolver;
+
+    @TempDir
+    File temporaryDirectory;
+
+    private XWikiContext xcontext;
+
+    private XWiki xwiki;
+
+    private XWikiDocument document;
+
+    private XWikiAttachment attachment;
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        this.xcontext = mock(XWikiContext.class);
+        this.xwiki = mock(XWiki.class);
+        this.document = mock(XWikiDocument.class);
+        this.attachment = mock(XWikiAttachment.class);
+
+        when(this.contextProvider.get()).thenReturn(this.xcontext);
+        when(this.xcontext.getWiki()).thenReturn(this.xwiki);
+        when(this.xwiki.getDocument(DOCUMENT_REFERENCE, this.xcontext)).thenReturn(this.document);
+        when(this.document.getAttachment("file.odt")).thenReturn(this.attachment);
+        when(this.attachment.getLongSize()).thenReturn((long) CONTENT.length);
+        when(this.attachment.getContentInputStream(this.xcontext))
+            .thenAnswer(invocation -> new ByteArrayInputStream(CONTENT));
+
+        when(this.environment.getTemporaryDirectory()).thenReturn(this.temporaryDirectory);
+        when(this.instanceConfiguration.getUploadMemoryThreshold()).thenReturn(1024);
+        when(this.saveCoalescer.getLock(ATTACHMENT_REFERENCE)).thenReturn(new Object());
+    }
+
+    @Test
+    void createOrUpdateAttachmentSkipsUnchangedContent() throws Exception
+    {
+        XWikiAttachment result = this.attachmentManager.createOrUpdateAttachment(ATTACHMENT_REFERENCE,
+            new ByteArrayInputStream(CONTENT), USER_REFERENCE);
+
+        assertSame(this.attachment, result);
+        verify(this.document, never()).clone();
+        verify(this.xwiki, never()).saveDocument(any(XWikiDocument.class), any(), any(XWikiContext.class));
+    }
+
+    @Test
+    void createOrUpdateAttachmentSavesChangedContent() throws Exception
+    {
+        XWikiDocument clonedDocument = mock(XWikiDocument.class);
+        XWikiAttachment newAttachment = mock(XWikiAttachment.class);
+        when(this.document.clone()).thenReturn(clonedDocument);
+        when(clonedDocument.setAttachment(eq("file.odt"), any(InputStream.class), eq(this.xcontext)))
+            .thenReturn(newAttachment);
+        when(clonedDocument.getAuthors()).thenReturn(mock(DocumentAuthors.class));
+
+        // Same size, different content.
+        byte[] newContent = "changed content".getBytes(StandardCharsets.UTF_8);
+        XWikiAttachment result = this.attachmentManager.createOrUpdateAttachment(ATTACHMENT_REFERENCE,
+            new ByteArrayInputStream(newContent), USER_REFERENCE);
+
+        assertSame(newAttachment, result);
+        verify(newAttachment).setAuthorReference(USER_REFERENCE);
+        verify(this.xwiki).saveDocument(eq(clonedDocument), any(), eq(this.xcontext));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link ClusterFileTokenStore}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList({ MemoryFileTokenStore.class })
+class ClusterFileTokenStoreTest
+{
+    private static final String USER = "XWiki.Alice";
+
+    private static final String FILE_ID = "Space.Page@file.odt";
+
+    @InjectMockComponents
+    private ClusterFileTokenStore store;
+
+    @MockComponent
+    private ObservationManager observationManager;
+
+    @MockComponent
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.instanceConfiguration.getMaxTokenCount()).thenReturn(100);
+        when(this.instanceConfiguration.getTokenSweepInterval()).thenReturn(3600);
+    }
+
+    @Test
+    void computeOnlyNotifiesTheChanges()
+    {
+        FileToken token = this.store.compute(USER, FILE_ID, current -> new FileToken(USER, FILE_ID, 1, true, true));
+        verify(this.observationManager).notify(any(FileTokenUpdatedEvent.class), any(), any());
+
+        // Unchanged token.
+        this.store.compute(USER, FILE_ID, current -> {
+            current.setHasEdit(true);
+            return current;
+        });
+        verify(this.observationManager).notify(any(FileTokenUpdatedEvent.class), any(), any());
+
+        this.store.compute(USER, FILE_ID, current -> {
+            current.setUsage(current.getUsage() + 1);
+            return current;
+        });
+        verify(this.observationManager, times(2)).notify(any(FileTokenUpdatedEvent.class), any(), any());
+        assertEquals(2, token.getVersion());
+
+        this.store.compute(USER, FILE_ID, current -> null);
+        verify(this.observationManager).notify(any(FileTokenRemovedEvent.class), any(), any());
+
+        // Nothing to remove.
+        this.store.compute(USER, FILE_ID, current -> null);
+        verify(this.observationManager).notify(any(FileTokenRemovedEvent.class), any(), any());
+    }
+}
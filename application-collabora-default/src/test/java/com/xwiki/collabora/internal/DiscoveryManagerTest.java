@@ -0,0 +1,197 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.sun.net.httpserver.HttpServer;
+import com.xwiki.collabora.configuration.CollaboraConfiguration;
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiscoveryManager}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class DiscoveryManagerTest
+{
+    private static final String ODT_FILE = "Space.Page@file.odt";
+
+    @InjectMockComponents
+    private DiscoveryManager discoveryManager;
+
+    @MockComponent
+    private CollaboraConfiguration configuration;
+
+    @MockComponent
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    private HttpServer server;
+
+    private byte[] discovery;
+
+    private volatile int status = 200;
+
+    private volatile long responseDelay;
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        this.discovery = readResource("/discovery.xml");
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/hosting/discovery", exchange -> {
+            this.requestCount.incrementAndGet();
+            try {
+                Thread.sleep(this.responseDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(this.status, this.discovery.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(this.discovery);
+            }
+        });
+        this.server.start();
+
+        when(this.configuration.getDiscoveryURL()).thenReturn(
+            new URL("http://localhost:" + this.server.getAddress().getPort() + "/hosting/discovery"));
+        when(this.instanceConfiguration.getDiscoveryTimeToLive()).thenReturn(3600);
+    }
+
+    @AfterEach
+    void tearDown()
+    {
+        this.server.stop(0);
+    }
+
+    @Test
+    void getURLSrc() throws Exception
+    {
+        assertEquals("https://collabora/browser/dist/cool.html?odt-edit", this.discoveryManager.getURLSrc(ODT_FILE));
+        assertEquals("https://collabora/browser/dist/cool.html?odt-view",
+            this.discoveryManager.getURLSrc(ODT_FILE, "view_comment"));
+        assertEquals("https://collabora/browser/dist/cool.html?pdf-view",
+            this.discoveryManager.getURLSrc("Space.Page@file.pdf"));
+        assertNull(this.discoveryManager.getURLSrc("Space.Page@file.png"));
+        assertNull(this.discoveryManager.getURLSrc("Space.Page@file.pdf", "edit"));
+
+        // The discovery is parsed only once.
+        assertEquals(1, this.requestCount.get());
+    }
+
+    @Test
+    void getEditorActions() throws Exception
+    {
+        assertEquals(Map.of("odt", "edit", "docx", "edit", "pdf", "view"), this.discoveryManager.getEditorActions());
+        assertEquals(Set.of("odt", "docx", "pdf"), this.discoveryManager.getExtensions());
+    }
+
+    @Test
+    void getURLSrcDoesNotResolveExternalEntities(@TempDir Path tempDir) throws Exception
+    {
+        Path secret = tempDir.resolve("secret.txt");
+        Files.writeString(secret, "top-secret");
+        this.discovery = new String(readResource("/discoveryWithExternalEntity.xml"), StandardCharsets.UTF_8)
+            .replace("SECRET_FILE_URL", secret.toUri().toString()).getBytes(StandardCharsets.UTF_8);
+
+        try {
+            String urlSrc = this.discoveryManager.getURLSrc(ODT_FILE);
+            assertFalse(urlSrc != null && urlSrc.contains("top-secret"));
+        } catch (IOException e) {
+            // The discovery is rejected because the entity is not declared.
+        }
+    }
+
+    @Test
+    void concurrentFirstLoadsShareTheSameRequest() throws Exception
+    {
+        this.responseDelay = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            Future<?>[] futures = new Future<?>[8];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = executor.submit(() -> {
+                    start.await();
+                    return this.discoveryManager.getURLSrc(ODT_FILE);
+                });
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                assertEquals("https://collabora/browser/dist/cool.html?odt-edit", future.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, this.requestCount.get());
+    }
+
+    @Test
+    void failedFirstLoadIsRetried() throws Exception
+    {
+        this.status = 500;
+        assertThrows(IOException.class, () -> this.discoveryManager.getURLSrc(ODT_FILE));
+
+        this.status = 200;
+        assertEquals("https://collabora/browser/dist/cool.html?odt-edit", this.discoveryManager.getURLSrc(ODT_FILE));
+        assertEquals(2, this.requestCount.get());
+    }
+
+    private byte[] readResource(String name) throws IOException
+    {
+        try (InputStream stream = getClass().getResourceAsStream(name)) {
+            return IOUtils.toByteArray(stream);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link FileTokenEventListener}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList({ MemoryFileTokenStore.class })
+class FileTokenEventListenerTest
+{
+    private static final String USER = "XWiki.Alice";
+
+    private static final String FILE_ID = "Space.Page@file.odt";
+
+    @InjectMockComponents
+    private FileTokenEventListener listener;
+
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    @MockComponent
+    private RemoteObservationManagerContext remoteObservationManagerContext;
+
+    @MockComponent
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @MockComponent
+    private SignedFileTokenCodec signedTokenCodec;
+
+    private FileTokenStore localStore;
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.instanceConfiguration.getMaxTokenCount()).thenReturn(100);
+        when(this.instanceConfiguration.getTokenSweepInterval()).thenReturn(3600);
+    }
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(this.remoteObservationManagerContext.isRemoteState()).thenReturn(true);
+        this.localStore = this.componentManager.getInstance(FileTokenStore.class, MemoryFileTokenStore.HINT);
+    }
+
+    @Test
+    void onEventIgnoresOutdatedUpdates()
+    {
+        FileToken token = new FileToken(USER, FILE_ID, 1, true, true);
+        FileToken older = snapshot(token, 1, 3);
+        FileToken newer = snapshot(token, 2, 2);
+
+        this.listener.onEvent(new FileTokenUpdatedEvent(), newer, null);
+        this.listener.onEvent(new FileTokenUpdatedEvent(), older, null);
+
+        assertEquals(2, this.localStore.get(USER, FILE_ID).getVersion());
+        assertEquals(2, this.localStore.get(USER, FILE_ID).getUsage());
+    }
+
+    @Test
+    void onEventIgnoresOutdatedRemovals()
+    {
+        FileToken token = new FileToken(USER, FILE_ID, 1, true, true);
+        this.listener.onEvent(new FileTokenUpdatedEvent(), snapshot(token, 1, 2), null);
+        this.listener.onEvent(new FileTokenUpdatedEvent(), snapshot(token, 3, 1), null);
+
+        this.listener.onEvent(new FileTokenRemovedEvent(), snapshot(token, 2, 1), null);
+        assertEquals(3, this.localStore.get(USER, FILE_ID).getVersion());
+
+        this.listener.onEvent(new FileTokenRemovedEvent(), snapshot(token, 4, 1), null);
+        assertNull(this.localStore.get(USER, FILE_ID));
+    }
+
+    @Test
+    void onEventOrdersConcurrentChangesByOrigin()
+    {
+        FileToken token = new FileToken(USER, FILE_ID, 1, true, true);
+        FileToken fromB = snapshot(token, 1, 2);
+        fromB.setVersion(1, "b");
+        FileToken fromA = snapshot(token, 1, 3);
+        fromA.setVersion(1, "a");
+
+        this.listener.onEvent(new FileTokenUpdatedEvent(), fromB, null);
+        this.listener.onEvent(new FileTokenUpdatedEvent(), fromA, null);
+
+        assertEquals(2, this.localStore.get(USER, FILE_ID).getUsage());
+    }
+
+    @Test
+    void onEventAcceptsANewTokenWithALowerVersion()
+    {
+        // The other member removed its copy of the token, then created a new one.
+        FileToken token = new FileToken(USER, FILE_ID, System.currentTimeMillis() - 1000, 1, true, true);
+        this.listener.onEvent(new FileTokenUpdatedEvent(), snapshot(token, 5, 1), null);
+        FileToken newToken = new FileToken(USER, FILE_ID, 1, true, true);
+        this.listener.onEvent(new FileTokenUpdatedEvent(), snapshot(newToken, 1, 1), null);
+
+        assertEquals(newToken.toString(), this.localStore.get(USER, FILE_ID).toString());
+
+        // The late changes of the replaced token are ignored.
+        this.listener.onEvent(new FileTokenUpdatedEvent(), snapshot(token, 6, 1), null);
+        this.listener.onEvent(new FileTokenRemovedEvent(), snapshot(token, 7, 1), null);
+
+        assertEquals(newToken.toString(), this.localStore.get(USER, FILE_ID).toString());
+    }
+
+    @Test
+    void onEventAppliesRemoteRevocations()
+    {
+        this.listener.onEvent(new SignedFileTokenRevokedEvent(), "wopi2_token", 42L);
+
+        verify(this.signedTokenCodec).revokeLocally("wopi2_token", 42L);
+    }
+
+    private FileToken snapshot(FileToken token, long version, int usage)
+    {
+        FileToken snapshot = new FileToken(token);
+        snapshot.setUsage(usage);
+        snapshot.setVersion(version, "remote");
+        return snapshot;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.AttachmentReferenceResolver;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import com.xwiki.collabora.configuration.CollaboraConfiguration;
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link FileTokenManager}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList({ MemoryFileTokenStore.class })
+class FileTokenManagerTest
+{
+    private static final int THREAD_COUNT = 8;
+
+    private static final int ITERATIONS = 1000;
+
+    private static final String USER = "XWiki.Alice";
+
+    private static final String FILE_ID = "Space.Page@file.odt";
+
+    private static final DocumentReference USER_REFERENCE = new DocumentReference("wiki", "XWiki", "Alice");
+
+    private static final long HOUR = 3600 * 1000L;
+
+    private static final AttachmentReference ATTACHMENT_REFERENCE =
+        new AttachmentReference("file.odt", new DocumentReference("wiki", "Space", "Page"));
+
+    @InjectMockComponents
+    private FileTokenManager fileTokenManager;
+
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    @MockComponent
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @MockComponent
+    private CollaboraConfiguration configuration;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> referenceSerializer;
+
+    @MockComponent
+    @Named("current")
+    private DocumentReferenceResolver<String> documentReferenceResolver;
+
+    @MockComponent
+    @Named("current")
+    private AttachmentReferenceResolver<String> attachmentReferenceResolver;
+
+    @MockComponent
+    private RightsCache rightsCache;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.instanceConfiguration.getTokenStore()).thenReturn(MemoryFileTokenStore.HINT);
+        when(this.instanceConfiguration.getMaxTokenCount()).thenReturn(Integer.MAX_VALUE);
+        when(this.instanceConfiguration.getTokenSweepInterval()).thenReturn(3600);
+        when(this.configuration.getTokenTimeout()).thenReturn(5);
+        when(this.referenceSerializer.serialize(USER_REFERENCE)).thenReturn(USER);
+        when(this.documentReferenceResolver.resolve(USER)).thenReturn(USER_REFERENCE);
+        when(this.attachmentReferenceResolver.resolve(FILE_ID)).thenReturn(ATTACHMENT_REFERENCE);
+        when(this.rightsCache.hasAccess(any(), eq(USER_REFERENCE), eq(ATTACHMENT_REFERENCE.getDocumentReference())))
+            .thenReturn(true);
+    }
+
+    @AfterEach
+    void tearDown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    void concurrentGetAndClearTokenDontLoseUpdates() throws Exception
+    {
+        runConcurrently(() -> this.fileTokenManager.getToken(USER_REFERENCE, FILE_ID, "edit"));
+
+        FileToken token = this.fileTokenManager.getToken(USER_REFERENCE, FILE_ID, "edit");
+        assertEquals(THREAD_COUNT * ITERATIONS + 1, token.getUsage());
+
+        runConcurrently(() -> this.fileTokenManager.clearToken(USER_REFERENCE, FILE_ID, "edit"));
+
+        assertFalse(this.fileTokenManager.isInvalid(FILE_ID, USER_REFERENCE));
+        assertEquals(1, token.getUsage());
+        assertEquals(0, this.fileTokenManager.clearToken(USER_REFERENCE, FILE_ID, "edit"));
+        assertTrue(this.fileTokenManager.isInvalid(FILE_ID, USER_REFERENCE));
+    }
+
+    @Test
+    void concurrentResolveAndHasAccess() throws Exception
+    {
+        String token = this.fileTokenManager.getToken(USER_REFERENCE, FILE_ID, "edit").toString();
+
+        runConcurrently(() -> {
+            assertTrue(this.fileTokenManager.hasAccess(FILE_ID, USER_REFERENCE, "edit"));
+            WopiSession session = this.fileTokenManager.resolve(token);
+            assertNotNull(session);
+            return session;
+        });
+        assertEquals(0, this.fileTokenManager.clearToken(USER_REFERENCE, FILE_ID, "edit"));
+    }
+
+    @Test
+    void resolveUpdatesTheRightsOfTheStoredToken()
+    {
+        FileToken token = this.fileTokenManager.getToken(USER_REFERENCE, FILE_ID, "edit");
+        assertTrue(token.hasEdit());
+
+        when(this.rightsCache.hasAccess(eq(Right.EDIT), eq(USER_REFERENCE), any())).thenReturn(false);
+        WopiSession session = this.fileTokenManager.resolve(token.toString());
+
+        assertNotNull(session);
+        assertFalse(token.hasEdit());
+        assertTrue(token.hasView());
+        assertNull(this.fileTokenManager.resolve("wopi_unknown"));
+    }
+
+    @Test
+    void expiredTokenCanBeExtendedUntilItIsSwept() throws Exception
+    {
+        MemoryFileTokenStore store =
+            this.componentManager.getInstance(FileTokenStore.class, MemoryFileTokenStore.HINT);
+        // The token expired one hour ago, and its lifetime is 5 hours.
+        store.compute(USER, FILE_ID,
+            current -> new FileToken(USER, FILE_ID, System.currentTimeMillis() - 6 * HOUR, 5, true, true));
+        store.removeExpiredTokens();
+
+        // The save done with the expired token is answered successfully, then the editor extends the token.
+        assertTrue(this.fileTokenManager.isInvalid(FILE_ID, USER_REFERENCE));
+        assertTrue(this.fileTokenManager.hasAccess(FILE_ID, USER_REFERENCE, "edit"));
+        this.fileTokenManager.extendToken(FILE_ID, USER_REFERENCE);
+        assertFalse(this.fileTokenManager.isInvalid(FILE_ID, USER_REFERENCE));
+
+        // A token expired for more than its lifetime is removed.
+        store.compute(USER, FILE_ID,
+            current -> new FileToken(USER, FILE_ID, System.currentTimeMillis() - 11 * HOUR, 5, true, true));
+        store.removeExpiredTokens();
+
+        assertEquals(1, store.getExpiredCount());
+        assertTrue(this.fileTokenManager.isInvalid(FILE_ID, USER_REFERENCE));
+        assertFalse(this.fileTokenManager.hasAccess(FILE_ID, USER_REFERENCE, "edit"));
+    }
+
+    private void runConcurrently(Callable<?> task) throws Exception
+    {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            futures.add(this.executor.submit(() -> {
+                start.await();
+                for (int j = 0; j < ITERATIONS; j++) {
+                    task.call();
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            // Rethrows the assertion errors of the worker threads.
+            future.get(30, TimeUnit.SECONDS);
+        }
+    }
+}
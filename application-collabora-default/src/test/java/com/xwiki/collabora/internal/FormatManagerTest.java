@@ -0,0 +1,72 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link FormatManager}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class FormatManagerTest
+{
+    @InjectMockComponents
+    private FormatManager formatManager;
+
+    @MockComponent
+    private DiscoveryManager discoveryManager;
+
+    @MockComponent
+    private CapabilitiesManager capabilitiesManager;
+
+    @Test
+    void getConversionInputFormats() throws Exception
+    {
+        when(this.capabilitiesManager.isConversionAvailable()).thenReturn(true);
+        when(this.discoveryManager.getExtensions()).thenReturn(Set.of("docx", "odt"));
+
+        assertTrue(this.formatManager.isConversionAvailable());
+        assertEquals(Set.of("docx", "odt"), this.formatManager.getConversionInputFormats());
+    }
+
+    @Test
+    void getConversionInputFormatsWhenConversionIsUnavailable() throws Exception
+    {
+        when(this.capabilitiesManager.isConversionAvailable()).thenReturn(false);
+
+        assertFalse(this.formatManager.isConversionAvailable());
+        assertEquals(Set.of(), this.formatManager.getConversionInputFormats());
+        verify(this.discoveryManager, never()).getExtensions();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link MemoryFileTokenStore}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class MemoryFileTokenStoreTest
+{
+    private static final int TOKEN_COUNT = 100_000;
+
+    @InjectMockComponents
+    private MemoryFileTokenStore store;
+
+    @MockComponent
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.instanceConfiguration.getMaxTokenCount()).thenReturn(Integer.MAX_VALUE);
+        when(this.instanceConfiguration.getTokenSweepInterval()).thenReturn(3600);
+    }
+
+    @Test
+    void getWithManyTokens()
+    {
+        FileToken[] tokens = new FileToken[TOKEN_COUNT];
+        for (int i = 0; i < TOKEN_COUNT; i++) {
+            FileToken token = new FileToken("XWiki.User" + (i % 100), "Space.Page" + i + "@file.odt", 1, true, false);
+            tokens[i] = this.store.compute(token.getUser(), token.getFileId(), current -> token);
+        }
+        assertEquals(TOKEN_COUNT, this.store.size());
+
+        for (FileToken token : tokens) {
+            assertSame(token, this.store.get(token.getUser(), token.getFileId()));
+            assertSame(token, this.store.get(token.toString()));
+        }
+    }
+
+    @Test
+    void computeKeepsIndexesConsistent()
+    {
+        FileToken token = new FileToken("XWiki.Alice", "Space.Page@file.odt", 1, true, true);
+        this.store.compute(token.getUser(), token.getFileId(), current -> token);
+
+        // Replace the token: the old value must not be found anymore.
+        FileToken newToken = new FileToken(token.getUser(), token.getFileId(), 1, true, false);
+        this.store.compute(token.getUser(), token.getFileId(), current -> newToken);
+        assertNull(this.store.get(token.toString()));
+        assertSame(newToken, this.store.get(newToken.toString()));
+        assertSame(newToken, this.store.get(token.getUser(), token.getFileId()));
+        assertEquals(1, this.store.size());
+
+        // Remove the token.
+        this.store.compute(token.getUser(), token.getFileId(), current -> null);
+        assertNull(this.store.get(newToken.toString()));
+        assertNull(this.store.get(token.getUser(), token.getFileId()));
+        assertEquals(0, this.store.size());
+    }
+
+    @Test
+    void computeEvictsTheTokensClosestToExpiration()
+    {
+        when(this.instanceConfiguration.getMaxTokenCount()).thenReturn(2);
+
+        FileToken first = new FileToken("XWiki.Alice", "Space.Page@a.odt", 1, true, false);
+        FileToken second = new FileToken("XWiki.Alice", "Space.Page@b.odt", 2, true, false);
+        FileToken third = new FileToken("XWiki.Alice", "Space.Page@c.odt", 3, true, false);
+        for (FileToken token : new FileToken[] { first, second, third }) {
+            this.store.compute(token.getUser(), token.getFileId(), current -> token);
+        }
+
+        assertEquals(2, this.store.size());
+        assertNull(this.store.get(first.toString()));
+        assertSame(second, this.store.get(second.toString()));
+        assertSame(third, this.store.get(third.toString()));
+        assertEquals(1, this.store.getEvictedCount());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link SignedFileTokenCodec}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class SignedFileTokenCodecTest
+{
+    @InjectMockComponents
+    private SignedFileTokenCodec codec;
+
+    @MockComponent
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @MockComponent
+    private ObservationManager observationManager;
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.instanceConfiguration.getTokenSigningKey()).thenReturn("secret");
+    }
+
+    @Test
+    void signAndVerify()
+    {
+        FileToken token = new FileToken("XWiki.Alice\nBob", "Space.Page@file\n.odt", 1, true, false);
+        String value = this.codec.sign(token);
+
+        assertTrue(this.codec.isSigned(value));
+        SignedFileToken signedToken = this.codec.verify(value);
+        assertEquals(token.getUser(), signedToken.getUser());
+        assertEquals(token.getFileId(), signedToken.getFileId());
+        assertEquals(token.getExpirationTime(), signedToken.getExpirationTime());
+        assertTrue(signedToken.hasView());
+        assertFalse(signedToken.hasEdit());
+    }
+
+    @Test
+    void verifyRejectsTamperedTokens()
+    {
+        String value = this.codec.sign(new FileToken("XWiki.Alice", "Space.Page@file.odt", 1, true, true));
+        String signature = value.substring(value.lastIndexOf('.'));
+        String payload = Base64.getUrlEncoder().withoutPadding()
+            .encodeToString("XWiki.Admin\nfile\n0\nve".getBytes(StandardCharsets.UTF_8));
+
+        assertNull(this.codec.verify("wopi2_" + payload + signature));
+        assertNull(this.codec.verify(value + "x"));
+        assertNull(this.codec.verify("wopi2_"));
+    }
+
+    @Test
+    void revoke()
+    {
+        FileToken token = new FileToken("XWiki.Alice", "Space.Page@file.odt", 1, true, true);
+        String value = this.codec.sign(token);
+        assertFalse(this.codec.isRevoked(value));
+
+        this.codec.revoke(value, token.getExpirationTime());
+        assertTrue(this.codec.isRevoked(value));
+        // The other members of the cluster are told to revoke it too.
+        verify(this.observationManager).notify(any(SignedFileTokenRevokedEvent.class), eq(value),
+            eq(token.getExpirationTime()));
+
+        // Revoking an expired token is not needed.
+        this.codec.revoke("wopi2_expired", System.currentTimeMillis() - 1);
+        assertFalse(this.codec.isRevoked("wopi2_expired"));
+    }
+
+    @Test
+    void revokeLocally()
+    {
+        String value = this.codec.sign(new FileToken("XWiki.Alice", "Space.Page@file.odt", 1, true, true));
+
+        this.codec.revokeLocally(value, System.currentTimeMillis() + 60000);
+
+        assertTrue(this.codec.isRevoked(value));
+        verify(this.observationManager, never()).notify(any(), any(), any());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Unit tests for {@link SpooledContent}.
+ *
+ * @version $Id$
+ */
+class SpooledContentTest
+{
+    private static final String CONTENT = "content saved from Collabora";
+
+    @TempDir
+    File directory;
+
+    @Test
+    void disposeKeepsTheFileUntilTheStreamsAreClosed() throws Exception
+    {
+        SpooledContent content = SpooledContent.spool(
+            new ByteArrayInputStream(CONTENT.getBytes(StandardCharsets.UTF_8)), 0, this.directory);
+        assertEquals(1, this.directory.list().length);
+
+        InputStream stream = content.openStreamIfAvailable();
+        content.dispose();
+        assertEquals(1, this.directory.list().length);
+        assertNull(content.openStreamIfAvailable());
+        assertThrows(IOException.class, content::openStream);
+
+        assertEquals(CONTENT, IOUtils.toString(stream, StandardCharsets.UTF_8));
+        stream.close();
+        assertEquals(0, this.directory.list().length);
+
+        // Closing again or disposing again doesn't release the content twice.
+        stream.close();
+        content.dispose();
+    }
+
+    @Test
+    void disposeWithoutStreams() throws Exception
+    {
+        SpooledContent content = SpooledContent.spool(
+            new ByteArrayInputStream(CONTENT.getBytes(StandardCharsets.UTF_8)), 0, this.directory);
+        content.dispose();
+
+        assertEquals(0, this.directory.list().length);
+    }
+}
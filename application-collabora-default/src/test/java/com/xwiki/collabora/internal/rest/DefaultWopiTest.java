@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal.rest;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Unit tests for {@link DefaultWopi}.
+ *
+ * @version $Id$
+ */
+class DefaultWopiTest
+{
+    private static final int THREAD_COUNT = 8;
+
+    private static final int ITERATIONS = 10000;
+
+    @Test
+    void formatLastModifiedTime()
+    {
+        assertEquals("2024-02-29T23:59:58.123000Z",
+            DefaultWopi.formatLastModifiedTime(Date.from(Instant.parse("2024-02-29T23:59:58.123Z"))));
+    }
+
+    @Test
+    void formatLastModifiedTimeConcurrently() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            Callable<Void> task = () -> {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    // Any date between 1970 and 2100.
+                    long time = ThreadLocalRandom.current().nextLong(4102444800000L);
+                    String formatted = DefaultWopi.formatLastModifiedTime(new Date(time));
+                    assertEquals(time, Instant.parse(formatted).toEpochMilli(), formatted);
+                }
+                return null;
+            };
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < THREAD_COUNT; i++) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<Void> future : futures) {
+                // Rethrows the assertion errors of the worker threads.
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
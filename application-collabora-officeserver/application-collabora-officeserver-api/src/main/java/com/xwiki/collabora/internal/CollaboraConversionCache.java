@@ -0,0 +1,280 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.environment.Environment;
+
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+/**
+ * Stores the conversion results on disk, keyed by the SHA-256 of the converted file, its format, the output format and
+ * the version of the Collabora server, so that converting the same file again doesn't require a request to the
+ * Collabora server. The least recently used results are removed once the cache exceeds its configured size.
+ * <p>
+ * The cached results are copies of the converted documents, kept in the permanent directory until they are evicted, so
+ * the cache is disabled unless {@code collabora.conversion.cache.maxSize} is set in {@code xwiki.properties}.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Component(roles = CollaboraConversionCache.class)
+@Singleton
+public class CollaboraConversionCache implements Initializable
+{
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    @Inject
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @Inject
+    private CapabilitiesManager capabilitiesManager;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private Logger logger;
+
+    private Path directory;
+
+    private long maxSize;
+
+    /**
+     * The size of the cached results, from the least recently used to the most recently used.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalSize;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    @Override
+    public void initialize()
+    {
+        this.maxSize = this.instanceConfiguration.getConversionCacheMaxSize() * 1024 * 1024;
+        this.directory = new File(this.environment.getPermanentDirectory(), "cache/collabora/conversions").toPath();
+        if (isEnabled()) {
+            loadEntries();
+        } else {
+            // Don't keep the results cached while the cache was enabled.
+            FileUtils.deleteQuietly(this.directory.toFile());
+        }
+    }
+
+    /**
+     * @return {@code true} if the conversion results should be cached, {@code false} otherwise
+     */
+    public boolean isEnabled()
+    {
+        return this.maxSize > 0;
+    }
+
+    /**
+     * Compute the key of a conversion result.
+     *
+     * @param inputHash the SHA-256 of the converted file, in hexadecimal
+     * @param inputFormat the format of the converted file, since the Collabora server chooses how to import the file
+     *     based on its name
+     * @param outputFormat the output format of the conversion
+     * @return the key of the conversion result, or {@code null} if the result must not be cached because the version
+     *     of the Collabora server is unknown
+     */
+    public String getKey(String inputHash, String inputFormat, String outputFormat)
+    {
+        String serverVersion = this.capabilitiesManager.getServerVersion();
+        if (serverVersion == null) {
+            return null;
+        }
+        return DigestUtils.sha256Hex(
+            String.join("\n", inputHash, inputFormat.toLowerCase(Locale.ROOT), outputFormat, serverVersion)
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Open a cached conversion result.
+     *
+     * @param key the key of the conversion result
+     * @param inputSize the size of the converted file, used to count the bytes that were not sent to the server
+     * @return a stream to read the conversion result, or {@code null} if it was not found in the cache
+     */
+    public InputStream open(String key, long inputSize)
+    {
+        Long size;
+        synchronized (this) {
+            size = this.entries.get(key);
+        }
+
+        if (size != null) {
+            Path file = this.directory.resolve(key);
+            try {
+                InputStream content = Files.newInputStream(file);
+                // Keep track of the last access, so that the least recently used results are evicted first after a
+                // restart too.
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                this.hitCount.incrementAndGet();
+                this.savedBytes.addAndGet(inputSize + size);
+                return content;
+            } catch (NoSuchFileException e) {
+                // The result was evicted in the meantime.
+            } catch (IOException e) {
+                this.logger.warn("Failed to read the cached conversion result [{}]. Root cause: [{}]", file,
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+
+        this.missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Store a conversion result.
+     *
+     * @param key the key of the conversion result
+     * @param result the conversion result
+     */
+    public void put(String key, CollaboraOfficeConverterResult result)
+    {
+        try {
+            Files.createDirectories(this.directory);
+            // Copy to a temporary file first, so that a partially written result is never served.
+            Path temporaryFile = Files.createTempFile(this.directory, key, TEMPORARY_SUFFIX);
+            try (InputStream content = result.openStream()) {
+                Files.copy(content, temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Path file = this.directory.resolve(key);
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            add(key, Files.size(file));
+        } catch (IOException e) {
+            this.logger.warn("Failed to cache the conversion result [{}]. Root cause: [{}]", key,
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    /**
+     * @return the ratio of the conversions that were found in the cache, between 0 and 1
+     */
+    public double getHitRatio()
+    {
+        long hits = this.hitCount.get();
+        long total = hits + this.missCount.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return the number of bytes that were not exchanged with the Collabora server thanks to the cache
+     */
+    public long getSavedBytes()
+    {
+        return this.savedBytes.get();
+    }
+
+    /**
+     * @return the total size of the cached conversion results, in bytes
+     */
+    public synchronized long getSize()
+    {
+        return this.totalSize;
+    }
+
+    private synchronized void add(String key, long size)
+    {
+        Long previousSize = this.entries.put(key, size);
+        this.totalSize += size - (previousSize != null ? previousSize : 0);
+
+        Iterator<Map.Entry<String, Long>> iterator = this.entries.entrySet().iterator();
+        while (this.totalSize > this.maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            this.totalSize -= eldest.getValue();
+            try {
+                Files.deleteIfExists(this.directory.resolve(eldest.getKey()));
+            } catch (IOException e) {
+                this.logger.warn("Failed to remove the cached conversion result [{}]. Root cause: [{}]",
+                    eldest.getKey(), ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+    }
+
+    private void loadEntries()
+    {
+        if (!Files.isDirectory(this.directory)) {
+            return;
+        }
+
+        // Restore the cached results from the least recently used to the most recently used.
+        try (Stream<Path> files = Files.list(this.directory)) {
+            files.sorted(Comparator.comparing(this::getLastModifiedTime)).forEach(file -> {
+                String key = file.getFileName().toString();
+                try {
+                    if (key.endsWith(TEMPORARY_SUFFIX)) {
+                        Files.delete(file);
+                    } else {
+                        add(key, Files.size(file));
+                    }
+                } catch (IOException e) {
+                    this.logger.warn("Failed to load the cached conversion result [{}]. Root cause: [{}]", file,
+                        ExceptionUtils.getRootCauseMessage(e));
+                }
+            });
+        } catch (IOException e) {
+            this.logger.warn("Failed to load the cached conversion results from [{}]. Root cause: [{}]",
+                this.directory, ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    private FileTime getLastModifiedTime(Path file)
+    {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.officeimporter.converter.OfficeConverterException;
+
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+/**
+ * Runs the conversions sent to the Collabora server on a bounded pool of threads, so that a burst of office imports
+ * or exports can't overwhelm the Collabora server. The conversions that exceed the concurrency limit wait in a bounded
+ * queue; when the queue is full, new conversions either wait for a free slot or are rejected, depending on the
+ * configuration.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Component(roles = CollaboraConversionScheduler.class)
+@Singleton
+public class CollaboraConversionScheduler implements Initializable, Disposable
+{
+    private static final String REJECT_POLICY = "reject";
+
+    @Inject
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @Inject
+    private Logger logger;
+
+    private ExecutorService executor;
+
+    /**
+     * Limits the number of running and queued conversions.
+     */
+    private Semaphore slots;
+
+    private boolean rejectWhenFull;
+
+    private long timeout;
+
+    private final AtomicInteger queueLength = new AtomicInteger();
+
+    private final AtomicLong startedCount = new AtomicLong();
+
+    private final AtomicLong totalWaitTime = new AtomicLong();
+
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong timedOutCount = new AtomicLong();
+
+    @Override
+    public void initialize()
+    {
+        int maxConcurrency = Math.max(1, this.instanceConfiguration.getConversionMaxConcurrency());
+        int queueSize = Math.max(0, this.instanceConfiguration.getConversionQueueSize());
+        this.slots = new Semaphore(maxConcurrency + queueSize, true);
+        this.rejectWhenFull = REJECT_POLICY.equals(this.instanceConfiguration.getConversionQueuePolicy());
+        this.timeout = TimeUnit.SECONDS.toNanos(this.instanceConfiguration.getConversionTimeout());
+        // The queue doesn't need to be bounded since the slots already limit the number of submitted conversions.
+        this.executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), new BasicThreadFactory.Builder().namingPattern("Collabora conversion %d")
+                .daemon(true).build());
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Run a conversion once there is a free slot, and wait for its result.
+     *
+     * @param conversion the conversion to run
+     * @param abort called when the conversion times out, in order to release the resources it holds (e.g. abort
+     *     the HTTP request)
+     * @param <T> the type of the conversion result; a result that is {@link AutoCloseable} is closed if the conversion
+     *     finishes after the caller gave up on it
+     * @return the conversion result
+     * @throws OfficeConverterException if the conversion failed, timed out, or was rejected because the queue is full
+     */
+    public <T> T run(Callable<T> conversion, Runnable abort) throws OfficeConverterException
+    {
+        long submitTime = System.nanoTime();
+        acquireSlot();
+
+        // Set by whoever comes first: the thread starting the conversion or the caller giving up on it.
+        AtomicBoolean claimed = new AtomicBoolean();
+        // The result of a conversion that may finish after the caller gave up on it, so that it's not leaked: whoever
+        // takes it from there (the conversion once it finished, or the caller giving up) closes it.
+        AtomicBoolean abandoned = new AtomicBoolean();
+        AtomicReference<T> lateResult = new AtomicReference<>();
+        this.queueLength.incrementAndGet();
+        Future<T> future;
+        try {
+            future = this.executor.submit(() -> {
+                if (!claimed.compareAndSet(false, true)) {
+                    return null;
+                }
+                this.queueLength.decrementAndGet();
+                recordWaitTime(System.nanoTime() - submitTime);
+                try {
+                    T result = conversion.call();
+                    lateResult.set(result);
+                    if (abandoned.get()) {
+                        discard(lateResult.getAndSet(null));
+                        return null;
+                    }
+                    return result;
+                } finally {
+                    this.slots.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            this.queueLength.decrementAndGet();
+            this.slots.release();
+            throw new OfficeConverterException("Failed to schedule the conversion", e);
+        }
+
+        try {
+            return future.get(this.timeout - (System.nanoTime() - submitTime), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            this.timedOutCount.incrementAndGet();
+            cancel(future, claimed, abort, abandoned, lateResult);
+            throw new OfficeConverterException(String.format("The conversion didn't finish in [%s] seconds",
+                TimeUnit.NANOSECONDS.toSeconds(this.timeout)), e);
+        } catch (InterruptedException e) {
+            cancel(future, claimed, abort, abandoned, lateResult);
+            Thread.currentThread().interrupt();
+            throw new OfficeConverterException("Interrupted while waiting for the conversion", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof OfficeConverterException) {
+                throw (OfficeConverterException) e.getCause();
+            }
+            throw new OfficeConverterException("The conversion failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return the number of conversions waiting for a free thread
+     */
+    public int getQueueLength()
+    {
+        return this.queueLength.get();
+    }
+
+    /**
+     * @return the number of conversions that were started since the server started
+     */
+    public long getStartedCount()
+    {
+        return this.startedCount.get();
+    }
+
+    /**
+     * @return the average time, in milliseconds, a conversion waited before being started
+     */
+    public long getAverageWaitTime()
+    {
+        long started = this.startedCount.get();
+        return started == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(this.totalWaitTime.get() / started);
+    }
+
+    /**
+     * @return the longest time, in milliseconds, a conversion waited before being started
+     */
+    public long getMaxWaitTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxWaitTime.get());
+    }
+
+    /**
+     * @return the number of conversions rejected because the queue was full
+     */
+    public long getRejectedCount()
+    {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * @return the number of conversions that didn't finish in time
+     */
+    public long getTimedOutCount()
+    {
+        return this.timedOutCount.get();
+    }
+
+    private void acquireSlot() throws OfficeConverterException
+    {
+        boolean acquired;
+        if (this.rejectWhenFull) {
+            acquired = this.slots.tryAcquire();
+        } else {
+            try {
+                acquired = this.slots.tryAcquire(this.timeout, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OfficeConverterException("Interrupted while waiting for a free conversion slot", e);
+            }
+        }
+
+        if (!acquired) {
+            this.rejectedCount.incrementAndGet();
+            throw new OfficeConverterException("Too many conversions are waiting for the Collabora server");
+        }
+    }
+
+    private void recordWaitTime(long waitTime)
+    {
+        this.startedCount.incrementAndGet();
+        this.totalWaitTime.addAndGet(waitTime);
+        this.maxWaitTime.accumulateAndGet(waitTime, Math::max);
+    }
+
+    private void cancel(Future<?> future, AtomicBoolean claimed, Runnable abort, AtomicBoolean abandoned,
+        AtomicReference<?> lateResult)
+    {
+        abandoned.set(true);
+        future.cancel(true);
+        // The conversion might have finished in the meantime.
+        discard(lateResult.getAndSet(null));
+        if (claimed.compareAndSet(false, true)) {
+            // The conversion was still in the queue so it will never start.
+            this.queueLength.decrementAndGet();
+            this.slots.release();
+        } else {
+            // The conversion is running and will release its slot once the abort takes effect.
+            try {
+                abort.run();
+            } catch (Exception e) {
+                this.logger.warn("Failed to abort the conversion: [{}]", e.getMessage());
+            }
+        }
+    }
+
+    private void discard(Object result)
+    {
+        if (result instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) result).close();
+            } catch (Exception e) {
+                this.logger.warn("Failed to release the result of an abandoned conversion. Root cause: [{}]",
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.environment.Environment;
+
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+/**
+ * Holds the files exchanged with the Collabora server during the conversions. Small files are kept in memory, the
+ * other ones are written to a single work directory whose size is limited, and the directories of the released
+ * conversion results are reused instead of being created and deleted for each conversion.
+ * <p>
+ * Each file written to the work directory is tracked until it's released. The conversion results that are not closed
+ * by their caller are released once they are garbage collected, and a periodic task removes the files that are not
+ * tracked anymore (e.g. left by a conversion that failed in an unexpected way, or handed out by a conversion result
+ * that was not closed).
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Component(roles = CollaboraConversionWorkDirectory.class)
+@Singleton
+public class CollaboraConversionWorkDirectory implements Initializable, Disposable
+{
+    /**
+     * The maximum number of empty result directories kept for the next conversions.
+     */
+    private static final int MAX_FREE_DIRECTORIES = 16;
+
+    @Inject
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private Logger logger;
+
+    private File directory;
+
+    private int memoryThreshold;
+
+    private long maxSize;
+
+    private int maxArchiveEntries;
+
+    private long maxArchiveSize;
+
+    private final Deque<File> freeDirectories = new ArrayDeque<>();
+
+    /**
+     * The files and directories of the work directory that are currently used.
+     */
+    private final Set<File> usedFiles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The size of the files currently written in the work directory.
+     */
+    private final AtomicLong size = new AtomicLong();
+
+    private final AtomicLong leakedResultCount = new AtomicLong();
+
+    private final AtomicLong orphanCount = new AtomicLong();
+
+    private final Cleaner cleaner = Cleaner.create();
+
+    private ScheduledExecutorService janitor;
+
+    @Override
+    public void initialize()
+    {
+        this.memoryThreshold = this.instanceConfiguration.getConversionMemoryThreshold();
+        this.maxSize = this.instanceConfiguration.getConversionWorkDirectoryMaxSize() * 1024 * 1024;
+        this.maxArchiveEntries = this.instanceConfiguration.getConversionArchiveMaxEntries();
+        this.maxArchiveSize = this.instanceConfiguration.getConversionArchiveMaxSize() * 1024 * 1024;
+        this.directory = new File(this.environment.getTemporaryDirectory(), "collabora/conversions");
+        // The results of the previous executions can't be used anymore.
+        FileUtils.deleteQuietly(this.directory);
+
+        this.janitor = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+            .namingPattern("Collabora conversion work directory janitor").daemon(true).build());
+        int sweepInterval = this.instanceConfiguration.getConversionWorkDirectorySweepInterval();
+        this.janitor.scheduleWithFixedDelay(() -> removeOrphans(sweepInterval * 1000L), sweepInterval, sweepInterval,
+            TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.janitor.shutdownNow();
+    }
+
+    /**
+     * Read a file to send to the Collabora server, which is written to the work directory only when it's larger than
+     * the memory threshold.
+     *
+     * @param content the content of the file, which is not closed by this method
+     * @return the content of the file, to release with {@link #releaseInput(DeferredFileOutputStream)} once sent
+     * @throws IOException if the content could not be read
+     */
+    public DeferredFileOutputStream spoolInput(InputStream content) throws IOException
+    {
+        DeferredFileOutputStream input =
+            new DeferredFileOutputStream(this.memoryThreshold, "collabora-conversion-input", null, getDirectory());
+        try {
+            try {
+                IOUtils.copyLarge(content, input);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            releaseInput(input);
+            throw e;
+        }
+
+        if (!input.isInMemory()) {
+            this.usedFiles.add(input.getFile());
+            this.size.addAndGet(input.getByteCount());
+        }
+        return input;
+    }
+
+    /**
+     * Release a file sent to the Collabora server.
+     *
+     * @param input the content of the file, as returned by {@link #spoolInput(InputStream)}
+     */
+    public void releaseInput(DeferredFileOutputStream input)
+    {
+        if (!input.isInMemory() && input.getFile() != null) {
+            if (this.usedFiles.remove(input.getFile())) {
+                this.size.addAndGet(-input.getByteCount());
+            }
+            FileUtils.deleteQuietly(input.getFile());
+        }
+    }
+
+    /**
+     * @return {@code true} if the files held in the work directory reached the maximum size, in which case no new
+     *     conversion should be started until some of them are released
+     */
+    public boolean isFull()
+    {
+        return this.size.get() >= this.maxSize;
+    }
+
+    /**
+     * Store a conversion result.
+     *
+     * @param outputFileName the name of the conversion result
+     * @param content the content of the conversion result, which is not closed by this method
+     * @return the stored conversion result
+     * @throws IOException if the content could not be read or stored
+     */
+    public CollaboraOfficeConverterResult store(String outputFileName, InputStream content) throws IOException
+    {
+        File resultDirectory = takeDirectory();
+        DeferredFileOutputStream output =
+            new DeferredFileOutputStream(this.memoryThreshold, new File(resultDirectory, outputFileName));
+        try {
+            try {
+                IOUtils.copyLarge(content, output);
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            releaseDirectory(resultDirectory);
+            throw e;
+        }
+
+        if (output.isInMemory()) {
+            // The result is only written to the disk if a caller asks for its file.
+            releaseDirectory(resultDirectory);
+            return new CollaboraOfficeConverterResult(outputFileName, output.getData(), this);
+        }
+        this.size.addAndGet(output.getByteCount());
+        return new CollaboraOfficeConverterResult(output.getFile(), this);
+    }
+
+    /**
+     * Store a conversion result made of several files, received as a ZIP archive.
+     *
+     * @param outputFileName the name of the main file of the conversion result
+     * @param archive the ZIP archive holding the conversion result, which is not closed by this method
+     * @param isMainFileExtension tells if a file of the archive can be the main file, given its extension
+     * @return the stored conversion result, whose main file is the first file of the archive with one of the given
+     *     extensions, renamed to the given output file name
+     * @throws IOException if the archive could not be read or stored, if it has too many entries or too large files
+     *     once uncompressed, or if it doesn't contain a main file
+     */
+    public CollaboraOfficeConverterResult storeArchive(String outputFileName, InputStream archive,
+        Predicate<String> isMainFileExtension) throws IOException
+    {
+        File resultDirectory = takeDirectory();
+        String resultDirectoryPath = resultDirectory.getCanonicalPath() + File.separator;
+        File mainFile = null;
+        Set<File> files = new LinkedHashSet<>();
+        long resultSize = 0;
+        int entryCount = 0;
+        try {
+            try (ZipInputStream zipStream = new ZipInputStream(CloseShieldInputStream.wrap(archive))) {
+                for (ZipEntry entry = zipStream.getNextEntry(); entry != null; entry = zipStream.getNextEntry()) {
+                    if (++entryCount > this.maxArchiveEntries) {
+                        throw new IOException(String.format(
+                            "The conversion result archive has more than [%s] entries.", this.maxArchiveEntries));
+                    }
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    File file = new File(resultDirectory, entry.getName());
+                    if (mainFile == null && isMainFileExtension.test(FilenameUtils.getExtension(entry.getName()))) {
+                        file = new File(resultDirectory, outputFileName);
+                        mainFile = file;
+                    }
+                    // Don't let the archive write files outside of the result directory.
+                    if (!file.getCanonicalPath().startsWith(resultDirectoryPath)) {
+                        throw new IOException(String.format("Invalid entry [%s] in the conversion result.",
+                            entry.getName()));
+                    }
+                    file.getParentFile().mkdirs();
+                    // Don't trust the size declared by the entry: stop copying as soon as the limit is exceeded.
+                    try (OutputStream output = Files.newOutputStream(file.toPath())) {
+                        resultSize += IOUtils.copyLarge(zipStream, output, 0, this.maxArchiveSize - resultSize + 1);
+                    }
+                    if (resultSize > this.maxArchiveSize) {
+                        throw new IOException(String.format(
+                            "The conversion result archive is larger than [%s] bytes once uncompressed.",
+                            this.maxArchiveSize));
+                    }
+                    files.add(file);
+                }
+            }
+            if (mainFile == null) {
+                throw new IOException("The conversion result archive doesn't contain the converted document.");
+            }
+        } catch (IOException e) {
+            releaseDirectory(resultDirectory);
+            throw e;
+        }
+
+        this.size.addAndGet(resultSize);
+        return new CollaboraOfficeConverterResult(mainFile, files, resultSize, this);
+    }
+
+    /**
+     * @return the number of bytes currently held in the work directory
+     */
+    public long getSize()
+    {
+        return this.size.get();
+    }
+
+    /**
+     * @return the number of conversion results that were released when garbage collected, because they were not
+     *     closed
+     */
+    public long getLeakedResultCount()
+    {
+        return this.leakedResultCount.get();
+    }
+
+    /**
+     * @return the number of files and directories that were found in the work directory without being used, and
+     *     removed
+     */
+    public long getOrphanCount()
+    {
+        return this.orphanCount.get();
+    }
+
+    /**
+     * Write a conversion result that was kept in memory to the work directory.
+     *
+     * @param outputFileName the name of the conversion result
+     * @param data the content of the conversion result
+     * @return the file holding the conversion result
+     * @throws IOException if the file could not be written
+     */
+    File write(String outputFileName, byte[] data) throws IOException
+    {
+        File file = new File(takeDirectory(), outputFileName);
+        try {
+            FileUtils.writeByteArrayToFile(file, data);
+        } catch (IOException e) {
+            releaseDirectory(file.getParentFile());
+            throw e;
+        }
+        this.size.addAndGet(data.length);
+        return file;
+    }
+
+    /**
+     * Release a conversion result written to the work directory, with the directory holding it.
+     *
+     * @param file the file holding the conversion result
+     * @param fileSize the size of the conversion result, when it was stored
+     * @param leaked {@code true} if the conversion result is released because it was garbage collected without being
+     *     closed
+     */
+    void release(File file, long fileSize, boolean leaked)
+    {
+        if (leaked) {
+            this.leakedResultCount.incrementAndGet();
+            this.logger.warn("The conversion result [{}] was not closed, its file is removed now that it's not used "
+                + "anymore.", file);
+        }
+        this.size.addAndGet(-fileSize);
+        releaseDirectory(file.getParentFile());
+    }
+
+    /**
+     * Stop tracking a conversion result that was garbage collected without being closed, after its files were handed
+     * out to the caller. Since the caller might still use them, the files are not removed right away but left to the
+     * removal of the unused files, which happens at least one sweep interval later.
+     *
+     * @param file the file holding the conversion result
+     * @param fileSize the size of the conversion result, when it was stored
+     */
+    void detach(File file, long fileSize)
+    {
+        this.leakedResultCount.incrementAndGet();
+        this.logger.warn("The conversion result [{}] was not closed, its files will be removed by the periodic cleanup"
+            + " of the work directory.", file);
+        this.size.addAndGet(-fileSize);
+        File resultDirectory = file.getParentFile();
+        // The unused files are removed only once they were not modified for a sweep interval.
+        resultDirectory.setLastModified(System.currentTimeMillis());
+        this.usedFiles.remove(resultDirectory);
+    }
+
+    /**
+     * Register the action releasing the file of a conversion result when it's garbage collected.
+     *
+     * @param result the conversion result
+     * @param action the action releasing the file of the conversion result, which must not reference it
+     * @return the registered action, to run when the conversion result is closed
+     */
+    Cleaner.Cleanable register(CollaboraOfficeConverterResult result, Runnable action)
+    {
+        return this.cleaner.register(result, action);
+    }
+
+    private File getDirectory()
+    {
+        this.directory.mkdirs();
+        return this.directory;
+    }
+
+    private File takeDirectory() throws IOException
+    {
+        File resultDirectory;
+        // Synchronized with the removal of the orphans, so that a directory is always either used or free.
+        synchronized (this.freeDirectories) {
+            resultDirectory = this.freeDirectories.poll();
+            if (resultDirectory != null) {
+                this.usedFiles.add(resultDirectory);
+            }
+        }
+        if (resultDirectory == null || !resultDirectory.isDirectory()) {
+            resultDirectory = Files.createTempDirectory(getDirectory().toPath(), "result").toFile();
+            this.usedFiles.add(resultDirectory);
+        }
+        return resultDirectory;
+    }
+
+    private void releaseDirectory(File resultDirectory)
+    {
+        try {
+            FileUtils.cleanDirectory(resultDirectory);
+            synchronized (this.freeDirectories) {
+                this.usedFiles.remove(resultDirectory);
+                if (this.freeDirectories.size() < MAX_FREE_DIRECTORIES) {
+                    this.freeDirectories.push(resultDirectory);
+                    return;
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            this.logger.warn("Failed to clean the conversion result directory [{}]. Root cause: [{}]",
+                resultDirectory, ExceptionUtils.getRootCauseMessage(e));
+        }
+        this.usedFiles.remove(resultDirectory);
+        FileUtils.deleteQuietly(resultDirectory);
+    }
+
+    /**
+     * Remove the files of the work directory that are not used anymore.
+     *
+     * @param minAge the minimum time since the last modification of an unused file before removing it, in
+     *     milliseconds, so that the files being created are not removed
+     */
+    void removeOrphans(long minAge)
+    {
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long maxLastModified = System.currentTimeMillis() - minAge;
+        for (File file : files) {
+            boolean unused;
+            synchronized (this.freeDirectories) {
+                unused = !this.usedFiles.contains(file) && !this.freeDirectories.contains(file);
+            }
+            // An unused file can't be used again, so it can be removed outside of the synchronized block.
+            if (unused && file.lastModified() < maxLastModified && FileUtils.deleteQuietly(file)) {
+                this.orphanCount.incrementAndGet();
+                this.logger.debug("Removed the unused file [{}] from the conversion work directory.", file);
+            }
+        }
+    }
+}
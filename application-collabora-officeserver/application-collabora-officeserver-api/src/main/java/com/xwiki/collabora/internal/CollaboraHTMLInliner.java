@@ -0,0 +1,231 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Packages an HTML document and the resources it references (e.g. images) as a single HTML document that the Collabora
+ * server can convert, by inlining the resources as data URIs. Only the {@code src} attributes and the {@code href}
+ * attributes of the style sheet links are inlined, since the other links (e.g. {@code <a href>}) are not resources of
+ * the document.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+final class CollaboraHTMLInliner
+{
+    /**
+     * A start tag, whose attribute values can contain {@code <} and {@code >} only when they are quoted, so that an
+     * unclosed tag doesn't make the search scan the rest of the document.
+     */
+    private static final Pattern TAG = Pattern.compile(
+        "<([a-z][a-z0-9-]*)(\\s(?>=\\s*\"[^\"]*\"|=\\s*'[^']*'|[^<>])*+)?>", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * An attribute of a start tag, with its value either double-quoted, single-quoted or unquoted.
+     */
+    private static final Pattern ATTRIBUTE =
+        Pattern.compile("([^\\s\"'>/=]+)(?:\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"'=<>`]+)))?");
+
+    private static final Pattern STYLESHEET = Pattern.compile("(?:^|\\s)stylesheet(?:\\s|$)", Pattern.CASE_INSENSITIVE);
+
+    private static final int TAG_NAME_GROUP = 1;
+
+    private static final int ATTRIBUTES_GROUP = 2;
+
+    private static final int ATTRIBUTE_NAME_GROUP = 1;
+
+    private static final int FIRST_VALUE_GROUP = 2;
+
+    private static final int LAST_VALUE_GROUP = 4;
+
+    private static final String SRC = "src";
+
+    private static final String HREF = "href";
+
+    private static final String REL = "rel";
+
+    private static final String LINK = "link";
+
+    private static final String DEFAULT_MEDIA_TYPE = "application/octet-stream";
+
+    /**
+     * A reference to a resource that can be inlined, found in the HTML document.
+     */
+    private static final class Reference
+    {
+        private final int start;
+
+        private final int end;
+
+        private final String name;
+
+        Reference(int start, int end, String name)
+        {
+            this.start = start;
+            this.end = end;
+            this.name = name;
+        }
+    }
+
+    private CollaboraHTMLInliner()
+    {
+
+    }
+
+    /**
+     * Inline the resources referenced by an HTML document. The HTML document is read in memory, but the resources are
+     * only read (and encoded) while the returned stream is read.
+     *
+     * @param html the HTML document
+     * @param resources the resources that can be referenced by the HTML document, by file name
+     * @return a stream to read the HTML document with its resources inlined
+     * @throws IOException if the HTML document or a resource referenced several times could not be read
+     */
+    static InputStream inline(InputStream html, Map<String, InputStream> resources) throws IOException
+    {
+        // Each byte is mapped to a single character in ISO-8859-1, so the HTML document is sent back unchanged
+        // whatever its encoding, as long as it's compatible with ASCII.
+        String content = new String(IOUtils.toByteArray(html), StandardCharsets.ISO_8859_1);
+
+        List<Reference> references = findReferences(content, resources);
+        Map<String, Integer> referenceCounts = new HashMap<>();
+        for (Reference reference : references) {
+            referenceCounts.merge(reference.name, 1, Integer::sum);
+        }
+
+        // A stream can only be read once, so the resources referenced several times are encoded in memory.
+        Map<String, byte[]> sharedResources = new HashMap<>();
+        for (Map.Entry<String, Integer> referenceCount : referenceCounts.entrySet()) {
+            if (referenceCount.getValue() > 1) {
+                sharedResources.put(referenceCount.getKey(),
+                    Base64.encodeBase64(IOUtils.toByteArray(resources.get(referenceCount.getKey()))));
+            }
+        }
+
+        List<InputStream> parts = new ArrayList<>();
+        int start = 0;
+        for (Reference reference : references) {
+            parts.add(toStream(content.substring(start, reference.start)));
+            String mediaType = URLConnection.guessContentTypeFromName(reference.name);
+            mediaType = mediaType != null ? mediaType : DEFAULT_MEDIA_TYPE;
+            parts.add(toStream(String.format("data:%s;base64,", mediaType)));
+            byte[] sharedResource = sharedResources.get(reference.name);
+            parts.add(sharedResource != null ? new ByteArrayInputStream(sharedResource)
+                : new Base64InputStream(resources.get(reference.name), true, 0, null));
+            start = reference.end;
+        }
+        parts.add(toStream(content.substring(start)));
+
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    private static List<Reference> findReferences(String content, Map<String, InputStream> resources)
+    {
+        List<Reference> references = new ArrayList<>();
+        Matcher tagMatcher = TAG.matcher(content);
+        while (tagMatcher.find()) {
+            String attributes = tagMatcher.group(ATTRIBUTES_GROUP);
+            if (attributes == null) {
+                continue;
+            }
+            boolean stylesheet =
+                LINK.equalsIgnoreCase(tagMatcher.group(TAG_NAME_GROUP)) && isStylesheet(attributes);
+            int offset = tagMatcher.start(ATTRIBUTES_GROUP);
+            Matcher matcher = ATTRIBUTE.matcher(attributes);
+            while (matcher.find()) {
+                String attributeName = matcher.group(ATTRIBUTE_NAME_GROUP);
+                int valueGroup = getValueGroup(matcher);
+                if (valueGroup > 0
+                    && (SRC.equalsIgnoreCase(attributeName) || stylesheet && HREF.equalsIgnoreCase(attributeName))) {
+                    String name = getResourceName(matcher.group(valueGroup), resources);
+                    if (name != null) {
+                        references.add(new Reference(offset + matcher.start(valueGroup),
+                            offset + matcher.end(valueGroup), name));
+                    }
+                }
+            }
+        }
+        return references;
+    }
+
+    private static boolean isStylesheet(String attributes)
+    {
+        Matcher matcher = ATTRIBUTE.matcher(attributes);
+        while (matcher.find()) {
+            int valueGroup = getValueGroup(matcher);
+            if (valueGroup > 0 && REL.equalsIgnoreCase(matcher.group(ATTRIBUTE_NAME_GROUP))
+                && STYLESHEET.matcher(matcher.group(valueGroup)).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the group holding the value of the matched attribute, or {@code -1} if the attribute has no value
+     */
+    private static int getValueGroup(Matcher attributeMatcher)
+    {
+        for (int group = FIRST_VALUE_GROUP; group <= LAST_VALUE_GROUP; group++) {
+            if (attributeMatcher.group(group) != null) {
+                return group;
+            }
+        }
+        return -1;
+    }
+
+    private static String getResourceName(String reference, Map<String, InputStream> resources)
+    {
+        String name = new String(reference.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+        if (resources.containsKey(name)) {
+            return name;
+        }
+        try {
+            String decodedName = URLDecoder.decode(name, StandardCharsets.UTF_8);
+            return resources.containsKey(decodedName) ? decodedName : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static InputStream toStream(String part)
+    {
+        return new ByteArrayInputStream(part.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
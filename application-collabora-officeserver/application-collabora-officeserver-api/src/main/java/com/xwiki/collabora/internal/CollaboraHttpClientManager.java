@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+/**
+ * Provides the HTTP client used to send conversion requests to the Collabora server. The connections are pooled and
+ * kept alive, so that consecutive conversions don't pay the cost of a new TCP and TLS handshake.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Component(roles = CollaboraHttpClientManager.class)
+@Singleton
+public class CollaboraHttpClientManager implements Initializable, Disposable
+{
+    @Inject
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    private CloseableHttpClient client;
+
+    @Override
+    public void initialize()
+    {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(this.instanceConfiguration.getConversionMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(this.instanceConfiguration.getConversionMaxConnectionsPerRoute());
+
+        int connectTimeout = (int) TimeUnit.SECONDS.toMillis(this.instanceConfiguration.getConversionConnectTimeout());
+        int socketTimeout = (int) TimeUnit.SECONDS.toMillis(this.instanceConfiguration.getConversionSocketTimeout());
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            // Don't wait forever for a connection from the pool.
+            .setConnectionRequestTimeout(connectTimeout)
+            .setSocketTimeout(socketTimeout)
+            .build();
+
+        long keepAlive = TimeUnit.SECONDS.toMillis(this.instanceConfiguration.getConversionKeepAlive());
+        this.client = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            // Use the keep alive duration sent by the server, bounded by the configured one.
+            .setKeepAliveStrategy((response, context) -> {
+                long serverKeepAlive =
+                    DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive) : keepAlive;
+            })
+            .evictExpiredConnections()
+            .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        try {
+            this.client.close();
+        } catch (IOException e) {
+            throw new ComponentLifecycleException("Failed to close the Collabora HTTP client.", e);
+        }
+    }
+
+    /**
+     * @return the shared HTTP client, which must not be closed by the caller
+     */
+    public CloseableHttpClient getClient()
+    {
+        return this.client;
+    }
+}
@@ -19,23 +19,28 @@
  */
 package com.xwiki.collabora.internal;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.entity.mime.content.InputStreamBody;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.apache.tika.mime.MediaType;
 import org.apache.tika.mime.MediaTypeRegistry;
 import org.slf4j.Logger;
@@ -60,16 +65,41 @@ public class CollaboraOfficeConverter implements OfficeConverter
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(CollaboraOfficeConverter.class);
 
+    private static final String ZIP_MIME_TYPE = "application/zip";
+
     private final CollaboraConfiguration configuration;
 
+    private final CloseableHttpClient client;
+
+    private final CollaboraConversionScheduler scheduler;
+
+    private final CollaboraConversionCache cache;
+
+    private final CollaboraConversionWorkDirectory workDirectory;
+
+    private final FormatManager formatManager;
+
     /**
      * Create a new converter.
      *
      * @param configuration the collabora configuration.
+     * @param client the shared HTTP client used to reach the Collabora server, which is not closed by the converter
+     * @param scheduler the scheduler limiting the number of conversions sent to the Collabora server
+     * @param cache the cache of the conversion results
+     * @param workDirectory the work directory holding the files exchanged with the Collabora server
+     * @param formatManager tells if the Collabora server can convert documents
+     * @since 1.8.4
      */
-    public CollaboraOfficeConverter(CollaboraConfiguration configuration)
+    public CollaboraOfficeConverter(CollaboraConfiguration configuration, CloseableHttpClient client,
+        CollaboraConversionScheduler scheduler, CollaboraConversionCache cache,
+        CollaboraConversionWorkDirectory workDirectory, FormatManager formatManager)
     {
         this.configuration = configuration;
+        this.client = client;
+        this.scheduler = scheduler;
+        this.cache = cache;
+        this.workDirectory = workDirectory;
+        this.formatManager = formatManager;
     }
 
     @Override
@@ -82,12 +112,10 @@ public class CollaboraOfficeConverter implements OfficeConverter
             throw new OfficeConverterException("Collabora server is not enabled");
         }
 
-        if (inputStreams.entrySet().size() != 1) {
-            throw new OfficeConverterException("Collabora office converter only supports one input file");
+        if (inputStreams.isEmpty()) {
+            throw new OfficeConverterException("Collabora office converter needs an input file");
         }
 
-        InputStream fileBody = inputStreams.entrySet().iterator().next().getValue();
-
         String inputFormat = FilenameUtils.getExtension(inputFileName);
         String outputFormat = FilenameUtils.getExtension(outputFileName);
         outputFormat = (StringUtils.isNotBlank(outputFormat)) ? outputFormat : DEFAULT_OUTPUT_FORMAT;
@@ -100,54 +128,138 @@ public class CollaboraOfficeConverter implements OfficeConverter
                     + " the Collabora server.", inputFormat, outputFormat));
         }
 
-        return convertInternal(fileBody, inputFileName, outputFileName, outputFormat);
+        // Don't send a request that is bound to fail to the configured server.
+        if (!this.formatManager.isConversionAvailable()) {
+            throw new OfficeConverterException("The configured Collabora server can't convert documents.");
+        }
+
+        if (this.workDirectory.isFull()) {
+            throw new OfficeConverterException("The conversion work directory is full, the previous conversion results "
+                + "need to be closed first.");
+        }
+
+        DeferredFileOutputStream input = null;
+        try {
+            InputStream fileBody = getInput(inputStreams, inputFileName, inputFormat);
+            // Read the whole file first, so that its length is known when sending it to the server, and its hash is
+            // known before looking for the result in the cache.
+            MessageDigest digest = DigestUtils.getSha256Digest();
+            input = this.workDirectory.spoolInput(
+                this.cache.isEnabled() ? new DigestInputStream(fileBody, digest) : fileBody);
+
+            if (this.cache.isEnabled()) {
+                return convertWithCache(input, Hex.encodeHexString(digest.digest()), inputFileName, inputFormat,
+                    outputFileName, outputFormat);
+            }
+
+            return convertInternal(input, inputFileName, outputFileName, outputFormat);
+        } catch (IOException e) {
+            throw new OfficeConverterException("Failed to read the file to convert", e);
+        } finally {
+            if (input != null) {
+                this.workDirectory.releaseInput(input);
+            }
+        }
     }
 
-    private CollaboraOfficeConverterResult convertInternal(InputStream fileBody, String inputFileName,
+    private InputStream getInput(Map<String, InputStream> inputStreams, String inputFileName, String inputFormat)
+        throws OfficeConverterException, IOException
+    {
+        // The Collabora server only accepts a single file, so the resources of an HTML document are inlined in it.
+        if (inputStreams.size() == 1) {
+            return inputStreams.values().iterator().next();
+        }
+
+        InputStream html = inputStreams.get(inputFileName);
+        if (html == null || !CollaboraOfficeConverterFormatHelper.isHTMLFormat(inputFormat)) {
+            throw new OfficeConverterException("Collabora office converter only supports several input files for an "
+                + "HTML document and its resources");
+        }
+        Map<String, InputStream> resources = new HashMap<>(inputStreams);
+        resources.remove(inputFileName);
+        return CollaboraHTMLInliner.inline(html, resources);
+    }
+
+    private CollaboraOfficeConverterResult convertWithCache(DeferredFileOutputStream input, String inputHash,
+        String inputFileName, String inputFormat, String outputFileName, String outputFormat)
+        throws OfficeConverterException, IOException
+    {
+        String key = this.cache.getKey(inputHash, inputFormat, outputFormat);
+        if (key != null) {
+            InputStream cachedResult = this.cache.open(key, input.getByteCount());
+            if (cachedResult != null) {
+                LOGGER.debug("Found the conversion result of file [{}] in the cache", inputFileName);
+                try (InputStream content = cachedResult) {
+                    return this.workDirectory.store(outputFileName, content);
+                }
+            }
+        }
+
+        CollaboraOfficeConverterResult result = convertInternal(input, inputFileName, outputFileName, outputFormat);
+        // Only the main file would be restored from the cache.
+        if (key != null && result.isSingleFile()) {
+            this.cache.put(key, result);
+        }
+        return result;
+    }
+
+    private CollaboraOfficeConverterResult convertInternal(DeferredFileOutputStream input, String inputFileName,
         String outputFileName, String outputFormat) throws OfficeConverterException
     {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            String conversionURL = String.format("%s/cool/convert-to/%s",
-                this.configuration.getServerURL(), outputFormat);
+        String conversionURL = String.format("%s/cool/convert-to/%s", this.configuration.getServerURL(), outputFormat);
 
-            LOGGER.debug("Making a request to conversion URL [{}]", conversionURL);
+        LOGGER.debug("Making a request to conversion URL [{}]", conversionURL);
 
-            HttpPost post = new HttpPost(conversionURL);
-            HttpEntity entity = MultipartEntityBuilder.create().addPart("file",
-                new InputStreamBody(fileBody, inputFileName)).build();
-            post.setEntity(entity);
+        // Send a body of known length, so that the request doesn't need to be chunked.
+        ContentBody fileBody = input.isInMemory() ? new ByteArrayBody(input.getData(), inputFileName)
+            : new FileBody(input.getFile(), ContentType.DEFAULT_BINARY, inputFileName);
+        HttpPost post = new HttpPost(conversionURL);
+        HttpEntity entity = MultipartEntityBuilder.create().addPart("file", fileBody).build();
+        post.setEntity(entity);
 
-            try (CloseableHttpResponse response = client.execute(post)) {
-                return handleResponse(response, outputFileName);
+        return this.scheduler.run(() -> {
+            try (CloseableHttpResponse response = this.client.execute(post)) {
+                return handleResponse(response, outputFileName, outputFormat);
+            } catch (IOException e) {
+                throw new OfficeConverterException("Failed to make a request to Collabora", e);
             }
-        } catch (IOException e) {
-            throw new OfficeConverterException("Failed to make a request to Collabora", e);
-        }
+        }, post::abort);
     }
 
-    private CollaboraOfficeConverterResult handleResponse(CloseableHttpResponse response, String outputFileName)
-        throws OfficeConverterException, IOException
+    private CollaboraOfficeConverterResult handleResponse(CloseableHttpResponse response, String outputFileName,
+        String outputFormat) throws OfficeConverterException, IOException
     {
         int statusCode = response.getStatusLine().getStatusCode();
         LOGGER.debug("Got response code [{}]", statusCode);
 
         if (statusCode != 200) {
+            // Consume the error body so that the connection can go back to the pool.
+            EntityUtils.consumeQuietly(response.getEntity());
             throw new OfficeConverterException(
                 String.format("Found invalid return code [%s] when requesting conversion to Collabora",
                     statusCode));
         } else {
-            Path directory = Files.createTempDirectory("collabora-office-importer");
-            File outputFile = new File(directory.toFile(), outputFileName);
-            LOGGER.debug("Storing conversion result to [{}]", outputFile);
+            LOGGER.debug("Storing conversion result [{}]", outputFileName);
 
-            try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                response.getEntity().writeTo(fos);
+            HttpEntity entity = response.getEntity();
+            try (InputStream content = entity.getContent()) {
+                // An HTML document is received as an archive when its images are exported in separate files.
+                if (CollaboraOfficeConverterFormatHelper.isHTMLFormat(outputFormat)
+                    && isArchive(ContentType.get(entity)))
+                {
+                    return this.workDirectory.storeArchive(outputFileName, content,
+                        CollaboraOfficeConverterFormatHelper::isHTMLFormat);
+                }
+                return this.workDirectory.store(outputFileName, content);
             }
-
-            return new CollaboraOfficeConverterResult(outputFile);
         }
     }
 
+    private boolean isArchive(ContentType contentType)
+    {
+        return contentType != null && ZIP_MIME_TYPE.equals(contentType.getMimeType());
+    }
+
     @Override
     public boolean isPresentation(String officeFileName)
     {
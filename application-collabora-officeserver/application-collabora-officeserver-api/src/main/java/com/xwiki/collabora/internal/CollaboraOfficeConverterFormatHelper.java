@@ -19,12 +19,21 @@
  */
 package com.xwiki.collabora.internal;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.apache.tika.Tika;
+import org.slf4j.LoggerFactory;
 
 /**
  * Helper to define if input / output formats are supported for conversion by the Collabora Office.
@@ -36,8 +45,6 @@ public final class CollaboraOfficeConverterFormatHelper
 {
     // Supported format extracted from this list: https://www.collaboraonline.com/document-conversion/
 
-    private static final Tika TIKA = new Tika();
-
     // This list defines all the document formats defined on the page above, in the order as they appear on the page
     // to help with maintainability.
     private static final String FORMAT_SXW = "sxw";
@@ -254,7 +261,7 @@ public final class CollaboraOfficeConverterFormatHelper
 
     private static final String FORMAT_SWF = "swf";
 
-    // Expose input formats and media types that are supported
+    // Expose input formats that are supported
 
     // We explicitly add HTML and XHTML formats to the supported writer input formats to enable the
     // possibility to perform document imports.
@@ -269,12 +276,6 @@ public final class CollaboraOfficeConverterFormatHelper
             Set.of(FORMAT_HTML, FORMAT_XHTML))
         .flatMap(Collection::stream).collect(Collectors.toUnmodifiableSet());
 
-    /**
-     * Input media types supported for Writer.
-     */
-    public static final Set<String> SUPPORTED_INPUT_MEDIA_TYPES_WRITER =
-        SUPPORTED_INPUT_FORMATS_WRITER.stream().map(TIKA::detect).collect(Collectors.toUnmodifiableSet());
-
     /**
      * Input formats supported for Calc.
      */
@@ -282,12 +283,6 @@ public final class CollaboraOfficeConverterFormatHelper
         INPUT_FORMATS_CALC_DOCS, INPUT_FORMATS_SPREADSHEET_TEMPLATE_DOCS, INPUT_FORMATS_MS_EXCEL,
         INPUT_FORMATS_OOXML_SPREADSHEET).flatMap(Collection::stream).collect(Collectors.toUnmodifiableSet());
 
-    /**
-     * Input media types supported for Calc.
-     */
-    public static final Set<String> SUPPORTED_INPUT_MEDIA_TYPES_CALC =
-        SUPPORTED_INPUT_FORMATS_CALC.stream().map(TIKA::detect).collect(Collectors.toUnmodifiableSet());
-
     /**
      * Input formats supported for Impress.
      */
@@ -295,12 +290,6 @@ public final class CollaboraOfficeConverterFormatHelper
         INPUT_FORMATS_IMPRESS_DOCS, INPUT_FORMATS_PRESENTATION_TEMPLATE_DOCS, INPUT_FORMATS_MS_POWERPOINT,
         INPUT_FORMATS_OOXML_PRESENTATION).flatMap(Collection::stream).collect(Collectors.toUnmodifiableSet());
 
-    /**
-     * Input media types supported for Impress.
-     */
-    public static final Set<String> SUPPORTED_INPUT_MEDIA_TYPES_IMPRESS =
-        SUPPORTED_INPUT_FORMATS_IMPRESS.stream().map(TIKA::detect).collect(Collectors.toUnmodifiableSet());
-
     /**
      * Input formats supported for … others.
      */
@@ -309,13 +298,7 @@ public final class CollaboraOfficeConverterFormatHelper
             INPUT_FORMATS_BASE_DOCS, INPUT_FORMATS_EXTENSIONS, INPUT_FORMATS_OTHER1, INPUT_FORMATS_OTHER2)
         .flatMap(Collection::stream).collect(Collectors.toUnmodifiableSet());
 
-    /**
-     * Other supported input media types.
-     */
-    public static final Set<String> SUPPORTED_INPUT_MEDIA_TYPES_OTHER =
-        SUPPORTED_INPUT_FORMATS_OTHER.stream().map(TIKA::detect).collect(Collectors.toUnmodifiableSet());
-
-    // Expose the output formats and media types that are supported
+    // Expose the output formats that are supported
 
     /**
      * Output formats supported for Writer.
@@ -323,24 +306,12 @@ public final class CollaboraOfficeConverterFormatHelper
     private static final Set<String> SUPPORTED_OUTPUT_FORMATS_WRITER = Set.of(FORMAT_DOC, FORMAT_DOCM, FORMAT_DOCX,
         FORMAT_FODT, FORMAT_HTML, FORMAT_ODT, FORMAT_OTT, FORMAT_PDF, FORMAT_RTF, FORMAT_TXT, FORMAT_XHTML, FORMAT_PNG);
 
-    /**
-     * Output media types supported for Writer.
-     */
-    public static final Set<String> SUPPORTED_OUTPUT_MEDIA_TYPES_WRITER =
-        SUPPORTED_OUTPUT_FORMATS_WRITER.stream().map(TIKA::detect).collect(Collectors.toUnmodifiableSet());
-
     /**
      * Output formats supported for Calc.
      */
     private static final Set<String> SUPPORTED_OUTPUT_FORMATS_CALC = Set.of(FORMAT_HTML, FORMAT_ODS, FORMAT_OTS,
         FORMAT_PDF, FORMAT_XHTML, FORMAT_XLS, FORMAT_XLSM, FORMAT_XLSX, FORMAT_PNG);
 
-    /**
-     * Output media types supported for Calc.
-     */
-    public static final Set<String> SUPPORTED_OUTPUT_MEDIA_TYPES_CALC =
-        SUPPORTED_OUTPUT_FORMATS_CALC.stream().map(TIKA::detect).collect(Collectors.toUnmodifiableSet());
-
     /**
      * Output formats supported for Impress.
      */
@@ -348,12 +319,6 @@ public final class CollaboraOfficeConverterFormatHelper
         FORMAT_ODP, FORMAT_OTP, FORMAT_PDF, FORMAT_POTM, FORMAT_POT, FORMAT_PPTM, FORMAT_PPTX, FORMAT_PPS, FORMAT_PPT,
         FORMAT_SVG, FORMAT_SWF, FORMAT_XHTML, FORMAT_PNG);
 
-    /**
-     * Output media types supported for Impress.
-     */
-    public static final Set<String> SUPPORTED_OUTPUT_MEDIA_TYPES_IMPRESS =
-        SUPPORTED_OUTPUT_FORMATS_IMPRESS.stream().map(TIKA::detect).collect(Collectors.toUnmodifiableSet());
-
     /**
      * Default output format, to be used in case no document format is provided.
      */
@@ -364,6 +329,20 @@ public final class CollaboraOfficeConverterFormatHelper
 
     }
 
+    /**
+     * Indicates if the given format is an HTML format, whose resources (e.g. images) can be held in separate files.
+     *
+     * @param format the format
+     * @return true if the format is HTML or XHTML
+     * @since 1.8.4
+     */
+    public static boolean isHTMLFormat(String format)
+    {
+        String lowerCaseFormat = format.toLowerCase(Locale.ROOT);
+        return FORMAT_HTML.equals(lowerCaseFormat) || FORMAT_XHTML.equals(lowerCaseFormat)
+            || "htm".equals(lowerCaseFormat);
+    }
+
     /**
      * Indicates if conversion from one media type to another is supported by Collabora.
      *
@@ -373,15 +352,7 @@ public final class CollaboraOfficeConverterFormatHelper
      */
     public static boolean isConversionSupportedForMediaType(String inputMediaType, String outputMediaType)
     {
-        if (SUPPORTED_INPUT_MEDIA_TYPES_WRITER.contains(inputMediaType)) {
-            return SUPPORTED_OUTPUT_MEDIA_TYPES_WRITER.contains(outputMediaType);
-        } else if (SUPPORTED_INPUT_MEDIA_TYPES_CALC.contains(inputMediaType)) {
-            return SUPPORTED_OUTPUT_MEDIA_TYPES_CALC.contains(outputMediaType);
-        } else if (SUPPORTED_INPUT_MEDIA_TYPES_IMPRESS.contains(inputMediaType)) {
-            return SUPPORTED_OUTPUT_MEDIA_TYPES_IMPRESS.contains(outputMediaType);
-        } else {
-            return false;
-        }
+        return MediaTypeMatrixHolder.MATRIX.isSupported(inputMediaType, outputMediaType);
     }
 
     /**
@@ -393,17 +364,89 @@ public final class CollaboraOfficeConverterFormatHelper
      */
     public static boolean isConversionSupportedForFormat(String inputFormat, String outputFormat)
     {
-        String lowerCaseInputFormat = inputFormat.toLowerCase();
-        String lowerCaseOutputFormat = outputFormat.toLowerCase();
-
-        if (SUPPORTED_INPUT_FORMATS_WRITER.contains(lowerCaseInputFormat)) {
-            return SUPPORTED_OUTPUT_FORMATS_WRITER.contains(lowerCaseOutputFormat);
-        } else if (SUPPORTED_INPUT_FORMATS_CALC.contains(lowerCaseInputFormat)) {
-            return SUPPORTED_OUTPUT_FORMATS_CALC.contains(lowerCaseOutputFormat);
-        } else if (SUPPORTED_INPUT_FORMATS_IMPRESS.contains(lowerCaseInputFormat)) {
-            return SUPPORTED_OUTPUT_FORMATS_IMPRESS.contains(lowerCaseOutputFormat);
-        } else {
-            return false;
+        return FormatMatrixHolder.MATRIX.isSupported(inputFormat, outputFormat);
+    }
+
+    /**
+     * The supported conversions, as a bit set of the supported outputs for each input, so that checking a conversion
+     * only needs two map lookups.
+     */
+    private static final class ConversionMatrix
+    {
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        private final List<BitSet> outputs = new ArrayList<>();
+
+        ConversionMatrix(UnaryOperator<String> keyFunction)
+        {
+            // An input that belongs to several applications is converted by the first one, as before.
+            add(SUPPORTED_INPUT_FORMATS_WRITER, SUPPORTED_OUTPUT_FORMATS_WRITER, keyFunction);
+            add(SUPPORTED_INPUT_FORMATS_CALC, SUPPORTED_OUTPUT_FORMATS_CALC, keyFunction);
+            add(SUPPORTED_INPUT_FORMATS_IMPRESS, SUPPORTED_OUTPUT_FORMATS_IMPRESS, keyFunction);
+        }
+
+        private void add(Set<String> inputs, Set<String> supportedOutputs, UnaryOperator<String> keyFunction)
+        {
+            BitSet outputIds = new BitSet();
+            for (String output : supportedOutputs) {
+                outputIds.set(getOrCreateId(keyFunction.apply(output)));
+            }
+            for (String input : inputs) {
+                BitSet inputOutputs = this.outputs.get(getOrCreateId(keyFunction.apply(input)));
+                if (inputOutputs.isEmpty()) {
+                    inputOutputs.or(outputIds);
+                }
+            }
+        }
+
+        private int getOrCreateId(String key)
+        {
+            return this.ids.computeIfAbsent(key, k -> {
+                this.outputs.add(new BitSet());
+                return this.outputs.size() - 1;
+            });
+        }
+
+        private Integer getId(String key)
+        {
+            Integer id = this.ids.get(key);
+            // Only allocate a lower case key if the given one is not already in lower case.
+            return id != null ? id : this.ids.get(key.toLowerCase(Locale.ROOT));
+        }
+
+        boolean isSupported(String input, String output)
+        {
+            Integer inputId = getId(input);
+            Integer outputId = getId(output);
+            return inputId != null && outputId != null && this.outputs.get(inputId).get(outputId);
+        }
+    }
+
+    /**
+     * Holds the conversion matrix of the formats, created when it's first used.
+     */
+    private static final class FormatMatrixHolder
+    {
+        private static final ConversionMatrix MATRIX = new ConversionMatrix(UnaryOperator.identity());
+    }
+
+    /**
+     * Holds the conversion matrix of the media types, created when it's first used since detecting the media type of
+     * all the formats takes time.
+     */
+    private static final class MediaTypeMatrixHolder
+    {
+        private static final ConversionMatrix MATRIX = createMatrix();
+
+        private static ConversionMatrix createMatrix()
+        {
+            long start = System.nanoTime();
+            Tika tika = new Tika();
+            ConversionMatrix matrix = new ConversionMatrix(tika::detect);
+            LoggerFactory.getLogger(CollaboraOfficeConverterFormatHelper.class).debug(
+                "Computed the media types supported by the Collabora server in [{}] ms.",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return matrix;
         }
     }
 }
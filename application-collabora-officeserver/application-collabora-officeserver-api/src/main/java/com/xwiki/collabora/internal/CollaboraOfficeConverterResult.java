@@ -19,21 +19,94 @@
  */
 package com.xwiki.collabora.internal;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.file.Files;
 import java.util.Set;
 
 import org.xwiki.officeimporter.converter.OfficeConverterResult;
 
 /**
  * Simple implementation of an office converter result, for conversions made against a Collabora server.
+ * <p>
+ * A small result is kept in memory and only written to the disk when its file is requested, so it can be read with
+ * {@link #openStream()} without creating any file. A result can also be made of several files (e.g. an HTML document
+ * with its images), held in the same directory. Closing the result removes its files and their directory, after which
+ * the result can't be read anymore.
+ * <p>
+ * The result should always be closed. If it's garbage collected without being closed, its files are removed right away
+ * as long as they were never requested. Otherwise, since the caller might still use the files returned by
+ * {@link #getOutputFile()}, {@link #getOutputDirectory()} or {@link #getAllFiles()}, they are only removed by the
+ * periodic cleanup of the work directory, at least one sweep interval later (see
+ * {@code collabora.conversion.workDirectory.sweepInterval}). A caller that needs the files longer must keep a reference
+ * to the result until it closes it, or copy them.
  *
  * @version $Id$
  * @since 1.6.0
  */
 public class CollaboraOfficeConverterResult implements OfficeConverterResult
 {
-    private final File file;
+    private static final String CLOSED = "The conversion result was closed";
+
+    private final String fileName;
+
+    private final long size;
+
+    private final CollaboraConversionWorkDirectory workDirectory;
+
+    private final Set<File> allFiles;
+
+    private final ResultFile resultFile;
+
+    private final Cleaner.Cleanable cleanable;
+
+    private byte[] data;
+
+    /**
+     * The file of a conversion result, released when the result is closed or garbage collected. It must not reference
+     * the result itself, otherwise the result would never be garbage collected.
+     */
+    private static final class ResultFile implements Runnable
+    {
+        private final CollaboraConversionWorkDirectory workDirectory;
+
+        private final long size;
+
+        private File file;
+
+        private boolean closed;
+
+        /**
+         * Whether the file was handed out to the caller, who might still use it after dropping the result.
+         */
+        private boolean exposed;
+
+        ResultFile(CollaboraConversionWorkDirectory workDirectory, long size, File file)
+        {
+            this.workDirectory = workDirectory;
+            this.size = size;
+            this.file = file;
+        }
+
+        @Override
+        public synchronized void run()
+        {
+            if (this.file != null) {
+                if (this.workDirectory != null && !this.closed && this.exposed) {
+                    this.workDirectory.detach(this.file, this.size);
+                } else if (this.workDirectory != null) {
+                    this.workDirectory.release(this.file, this.size, !this.closed);
+                } else {
+                    this.file.delete();
+                }
+                this.file = null;
+            }
+        }
+    }
 
     /**
      * Create a new {@link CollaboraOfficeConverterResult}.
@@ -42,30 +115,149 @@ public class CollaboraOfficeConverterResult implements OfficeConverterResult
      */
     public CollaboraOfficeConverterResult(File file)
     {
-        this.file = file;
+        this(file.getName(), file.length(), null, file, null, null);
+    }
+
+    /**
+     * Create a new {@link CollaboraOfficeConverterResult} stored in the conversion work directory.
+     *
+     * @param file the file that is a result of the conversion
+     * @param workDirectory the work directory holding the file
+     * @since 1.8.4
+     */
+    CollaboraOfficeConverterResult(File file, CollaboraConversionWorkDirectory workDirectory)
+    {
+        this(file.getName(), file.length(), null, file, null, workDirectory);
+    }
+
+    /**
+     * Create a new {@link CollaboraOfficeConverterResult} made of several files, stored in the conversion work
+     * directory.
+     *
+     * @param file the main file that is a result of the conversion
+     * @param allFiles all the files that are a result of the conversion, including the main one
+     * @param size the total size of the files
+     * @param workDirectory the work directory holding the files, in a single directory
+     * @since 1.8.4
+     */
+    CollaboraOfficeConverterResult(File file, Set<File> allFiles, long size,
+        CollaboraConversionWorkDirectory workDirectory)
+    {
+        this(file.getName(), size, null, file, Set.copyOf(allFiles), workDirectory);
+    }
+
+    /**
+     * Create a new {@link CollaboraOfficeConverterResult} kept in memory.
+     *
+     * @param fileName the name of the file that is a result of the conversion
+     * @param data the content of the conversion result
+     * @param workDirectory the work directory where to write the file if it's requested
+     * @since 1.8.4
+     */
+    CollaboraOfficeConverterResult(String fileName, byte[] data, CollaboraConversionWorkDirectory workDirectory)
+    {
+        this(fileName, data.length, data, null, null, workDirectory);
+    }
+
+    private CollaboraOfficeConverterResult(String fileName, long size, byte[] data, File file, Set<File> allFiles,
+        CollaboraConversionWorkDirectory workDirectory)
+    {
+        this.fileName = fileName;
+        this.size = size;
+        this.data = data;
+        this.allFiles = allFiles;
+        this.workDirectory = workDirectory;
+        this.resultFile = new ResultFile(workDirectory, size, file);
+        this.cleanable = workDirectory != null ? workDirectory.register(this, this.resultFile) : null;
+    }
+
+    /**
+     * @return a new stream to read the conversion result, without writing it to the disk if it's kept in memory
+     * @throws IOException if the conversion result could not be read, or was closed
+     * @since 1.8.4
+     */
+    public synchronized InputStream openStream() throws IOException
+    {
+        if (this.data != null) {
+            return new ByteArrayInputStream(this.data);
+        }
+        synchronized (this.resultFile) {
+            if (this.resultFile.file == null) {
+                throw new IOException(CLOSED);
+            }
+            return Files.newInputStream(this.resultFile.file.toPath());
+        }
+    }
+
+    /**
+     * @return {@code true} if the conversion result is made of a single file, {@code false} if it has other files than
+     *     the main one (e.g. the images of an HTML document)
+     * @since 1.8.4
+     */
+    public boolean isSingleFile()
+    {
+        return this.allFiles == null || this.allFiles.size() == 1;
+    }
+
+    /**
+     * @return the size of the conversion result, in bytes
+     * @since 1.8.4
+     */
+    public long getSize()
+    {
+        return this.size;
     }
 
     @Override
-    public File getOutputFile()
+    public synchronized File getOutputFile()
     {
-        return file;
+        synchronized (this.resultFile) {
+            if (this.resultFile.file == null && this.data != null) {
+                try {
+                    this.resultFile.file = this.workDirectory.write(this.fileName, this.data);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(
+                        String.format("Failed to write the conversion result [%s]", this.fileName), e);
+                }
+                this.data = null;
+            }
+            if (this.resultFile.file == null) {
+                throw new UncheckedIOException(new IOException(CLOSED));
+            }
+            this.resultFile.exposed = true;
+            return this.resultFile.file;
+        }
     }
 
     @Override
     public File getOutputDirectory()
     {
-        return file.getParentFile();
+        return getOutputFile().getParentFile();
     }
 
     @Override
     public Set<File> getAllFiles()
     {
-        return Set.of(file);
+        if (this.allFiles != null) {
+            synchronized (this.resultFile) {
+                this.resultFile.exposed = true;
+            }
+            return this.allFiles;
+        }
+        return Set.of(getOutputFile());
     }
 
     @Override
-    public void close() throws IOException
+    public synchronized void close() throws IOException
     {
-        file.delete();
+        synchronized (this.resultFile) {
+            this.resultFile.closed = true;
+        }
+        if (this.cleanable != null) {
+            this.cleanable.clean();
+        } else {
+            this.resultFile.run();
+        }
+        this.data = null;
     }
 }
@@ -23,6 +23,7 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
 import org.xwiki.officeimporter.converter.OfficeConverter;
 import org.xwiki.officeimporter.server.OfficeServer;
 import org.xwiki.officeimporter.server.OfficeServerException;
@@ -37,11 +38,36 @@ import com.xwiki.collabora.configuration.CollaboraConfiguration;
  */
 @Component
 @Singleton
-public class CollaboraOfficeServer implements OfficeServer
+public class CollaboraOfficeServer implements OfficeServer, Initializable
 {
     @Inject
     private CollaboraConfiguration collaboraConfiguration;
 
+    @Inject
+    private CollaboraHttpClientManager httpClientManager;
+
+    @Inject
+    private CollaboraConversionScheduler conversionScheduler;
+
+    @Inject
+    private CollaboraConversionCache conversionCache;
+
+    @Inject
+    private CollaboraConversionWorkDirectory conversionWorkDirectory;
+
+    @Inject
+    private FormatManager formatManager;
+
+    private OfficeConverter converter;
+
+    @Override
+    public void initialize()
+    {
+        // The converter is stateless, so a single instance sharing the pooled HTTP client is enough.
+        this.converter = new CollaboraOfficeConverter(collaboraConfiguration, httpClientManager.getClient(),
+            conversionScheduler, conversionCache, conversionWorkDirectory, formatManager);
+    }
+
     @Override
     public ServerState getState()
     {
@@ -63,6 +89,6 @@ public class CollaboraOfficeServer implements OfficeServer
     @Override
     public OfficeConverter getConverter()
     {
-        return new CollaboraOfficeConverter(collaboraConfiguration);
+        return converter;
     }
 }
@@ -0,0 +1,151 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.script;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.script.service.ScriptService;
+import org.xwiki.stability.Unstable;
+
+import com.xwiki.collabora.internal.CollaboraConversionCache;
+import com.xwiki.collabora.internal.CollaboraConversionScheduler;
+import com.xwiki.collabora.internal.CollaboraConversionWorkDirectory;
+
+/**
+ * Script services exposing the metrics of the conversions done by the Collabora server, available as
+ * {@code $services.collabora.conversion}.
+ *
+ * @version $Id$
+ * @since 1.8.4
+ */
+@Component
+@Named(CollaboraScriptService.ROLE_HINT + ".conversion")
+@Singleton
+@Unstable
+public class CollaboraConversionScriptService implements ScriptService
+{
+    @Inject
+    private CollaboraConversionScheduler scheduler;
+
+    @Inject
+    private CollaboraConversionCache cache;
+
+    @Inject
+    private CollaboraConversionWorkDirectory workDirectory;
+
+    /**
+     * @return the number of conversions waiting for a free thread
+     */
+    public int getQueueLength()
+    {
+        return this.scheduler.getQueueLength();
+    }
+
+    /**
+     * @return the number of conversions that were started since the server started
+     */
+    public long getStartedCount()
+    {
+        return this.scheduler.getStartedCount();
+    }
+
+    /**
+     * @return the average time, in milliseconds, a conversion waited before being started
+     */
+    public long getAverageWaitTime()
+    {
+        return this.scheduler.getAverageWaitTime();
+    }
+
+    /**
+     * @return the longest time, in milliseconds, a conversion waited before being started
+     */
+    public long getMaxWaitTime()
+    {
+        return this.scheduler.getMaxWaitTime();
+    }
+
+    /**
+     * @return the number of conversions rejected because the queue was full
+     */
+    public long getRejectedCount()
+    {
+        return this.scheduler.getRejectedCount();
+    }
+
+    /**
+     * @return the number of conversions that didn't finish in time
+     */
+    public long getTimedOutCount()
+    {
+        return this.scheduler.getTimedOutCount();
+    }
+
+    /**
+     * @return the ratio of the conversions that were found in the cache, between 0 and 1
+     */
+    public double getCacheHitRatio()
+    {
+        return this.cache.getHitRatio();
+    }
+
+    /**
+     * @return the number of bytes that were not exchanged with the Collabora server thanks to the cache
+     */
+    public long getCacheSavedBytes()
+    {
+        return this.cache.getSavedBytes();
+    }
+
+    /**
+     * @return the total size of the cached conversion results, in bytes
+     */
+    public long getCacheSize()
+    {
+        return this.cache.getSize();
+    }
+
+    /**
+     * @return the number of bytes currently held in the conversion work directory
+     */
+    public long getWorkDirectorySize()
+    {
+        return this.workDirectory.getSize();
+    }
+
+    /**
+     * @return the number of conversion results that were garbage collected without being closed
+     */
+    public long getLeakedResultCount()
+    {
+        return this.workDirectory.getLeakedResultCount();
+    }
+
+    /**
+     * @return the number of unused files and directories that were removed from the conversion work directory
+     */
+    public long getOrphanCount()
+    {
+        return this.workDirectory.getOrphanCount();
+    }
+}
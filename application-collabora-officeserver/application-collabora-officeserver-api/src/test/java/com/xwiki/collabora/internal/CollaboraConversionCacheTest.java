@@ -0,0 +1,172 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xwiki.environment.Environment;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link CollaboraConversionCache}, limited to 1 MB.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class CollaboraConversionCacheTest
+{
+    private static final int RESULT_SIZE = 400 * 1024;
+
+    private static final String FIRST = "first";
+
+    private static final String SECOND = "second";
+
+    private static final String THIRD = "third";
+
+    @InjectMockComponents
+    private CollaboraConversionCache cache;
+
+    @MockComponent
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @MockComponent
+    private CapabilitiesManager capabilitiesManager;
+
+    @MockComponent
+    private Environment environment;
+
+    @TempDir
+    File permanentDirectory;
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.instanceConfiguration.getConversionCacheMaxSize()).thenReturn(1L);
+        when(this.environment.getPermanentDirectory()).thenAnswer(invocation -> this.permanentDirectory);
+    }
+
+    @Test
+    void getKeyDependsOnTheServerVersion()
+    {
+        assertNull(this.cache.getKey("hash", "DOCX", "pdf"));
+
+        when(this.capabilitiesManager.getServerVersion()).thenReturn("24.04");
+        String key = this.cache.getKey("hash", "DOCX", "pdf");
+        assertEquals(key, this.cache.getKey("hash", "docx", "pdf"));
+
+        when(this.capabilitiesManager.getServerVersion()).thenReturn("24.10");
+        assertNotEquals(key, this.cache.getKey("hash", "docx", "pdf"));
+    }
+
+    @Test
+    void putEvictsTheLeastRecentlyUsedResults() throws Exception
+    {
+        assertTrue(this.cache.isEnabled());
+        byte[] content = new byte[RESULT_SIZE];
+        content[0] = 42;
+        this.cache.put(FIRST, new CollaboraOfficeConverterResult("first.pdf", content, null));
+        this.cache.put(SECOND, new CollaboraOfficeConverterResult("second.pdf", new byte[RESULT_SIZE], null));
+        try (InputStream stream = this.cache.open(FIRST, 10)) {
+            assertArrayEquals(content, stream.readAllBytes());
+        }
+
+        this.cache.put(THIRD, new CollaboraOfficeConverterResult("third.pdf", new byte[RESULT_SIZE], null));
+
+        assertNull(this.cache.open(SECOND, 10));
+        assertEquals(List.of(FIRST, THIRD), listCachedFiles());
+        assertEquals(2L * RESULT_SIZE, this.cache.getSize());
+        assertEquals(0.5, this.cache.getHitRatio());
+        assertEquals(10L + RESULT_SIZE, this.cache.getSavedBytes());
+    }
+
+    @Test
+    void initializeRestoresTheCachedResults() throws Exception
+    {
+        Path directory = getCacheDirectory();
+        Files.createDirectories(directory);
+        Files.write(directory.resolve(FIRST), new byte[2 * RESULT_SIZE]);
+        Files.setLastModifiedTime(directory.resolve(FIRST), FileTime.fromMillis(1000));
+        Files.write(directory.resolve(SECOND), new byte[RESULT_SIZE]);
+        Files.setLastModifiedTime(directory.resolve(SECOND), FileTime.fromMillis(2000));
+        Files.write(directory.resolve(THIRD), new byte[RESULT_SIZE]);
+        Files.setLastModifiedTime(directory.resolve(THIRD), FileTime.fromMillis(3000));
+        // A result that was being written when the server stopped.
+        Files.write(directory.resolve("fourth123.tmp"), new byte[10]);
+
+        // Simulate a restart.
+        this.cache.initialize();
+
+        // The least recently used result was evicted and the partially written result was removed.
+        assertEquals(List.of(SECOND, THIRD), listCachedFiles());
+        assertEquals(2L * RESULT_SIZE, this.cache.getSize());
+        assertNull(this.cache.open(FIRST, 0));
+        try (InputStream stream = this.cache.open(SECOND, 0)) {
+            assertEquals(RESULT_SIZE, stream.readAllBytes().length);
+        }
+    }
+
+    @Test
+    void initializeRemovesTheCachedResultsWhenDisabled() throws Exception
+    {
+        this.cache.put(FIRST, new CollaboraOfficeConverterResult("first.pdf", new byte[10], null));
+        assertEquals(List.of(FIRST), listCachedFiles());
+
+        when(this.instanceConfiguration.getConversionCacheMaxSize()).thenReturn(0L);
+        this.cache.initialize();
+
+        assertFalse(this.cache.isEnabled());
+        assertFalse(Files.exists(getCacheDirectory()));
+    }
+
+    private Path getCacheDirectory()
+    {
+        return this.permanentDirectory.toPath().resolve("cache/collabora/conversions");
+    }
+
+    private List<String> listCachedFiles() throws IOException
+    {
+        try (Stream<Path> files = Files.list(getCacheDirectory())) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+}
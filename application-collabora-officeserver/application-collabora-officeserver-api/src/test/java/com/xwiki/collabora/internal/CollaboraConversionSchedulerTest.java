@@ -0,0 +1,162 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.officeimporter.converter.OfficeConverterException;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link CollaboraConversionScheduler}, with a single conversion thread, a single queued conversion
+ * and the {@code reject} queue policy.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class CollaboraConversionSchedulerTest
+{
+    private static final Runnable NO_ABORT = () -> { };
+
+    @InjectMockComponents
+    private CollaboraConversionScheduler scheduler;
+
+    @MockComponent
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.instanceConfiguration.getConversionMaxConcurrency()).thenReturn(1);
+        when(this.instanceConfiguration.getConversionQueueSize()).thenReturn(1);
+        when(this.instanceConfiguration.getConversionTimeout()).thenReturn(1);
+        when(this.instanceConfiguration.getConversionQueuePolicy()).thenReturn("reject");
+    }
+
+    @AfterEach
+    void tearDown()
+    {
+        this.callers.shutdownNow();
+    }
+
+    @Test
+    void runRejectsWhenFullAndReleasesTheSlots() throws Exception
+    {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        Future<String> first = this.callers.submit(() -> this.scheduler.run(() -> {
+            running.countDown();
+            finish.await();
+            return "first";
+        }, NO_ABORT));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        Future<String> second = this.callers.submit(() -> this.scheduler.run(() -> "second", NO_ABORT));
+        waitFor(() -> this.scheduler.getQueueLength() == 1);
+
+        assertThrows(OfficeConverterException.class, () -> this.scheduler.run(() -> "third", NO_ABORT));
+        assertEquals(1, this.scheduler.getRejectedCount());
+
+        finish.countDown();
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("second", second.get(5, TimeUnit.SECONDS));
+
+        // The slots were released.
+        assertEquals("fourth", this.scheduler.run(() -> "fourth", NO_ABORT));
+        assertEquals("fifth", this.scheduler.run(() -> "fifth", NO_ABORT));
+        assertEquals(4, this.scheduler.getStartedCount());
+        assertEquals(0, this.scheduler.getQueueLength());
+    }
+
+    @Test
+    void runAbortsTheConversionOnTimeoutAndClosesItsLateResult() throws Exception
+    {
+        CountDownLatch aborted = new CountDownLatch(1);
+        AtomicBoolean closed = new AtomicBoolean();
+
+        assertThrows(OfficeConverterException.class, () -> this.scheduler.run(() -> {
+            // Ignore the interruption, like a blocking I/O call that only ends when the request is aborted.
+            while (!aborted.await(5, TimeUnit.SECONDS)) {
+                Thread.interrupted();
+            }
+            return (AutoCloseable) () -> closed.set(true);
+        }, aborted::countDown));
+
+        assertEquals(1, this.scheduler.getTimedOutCount());
+        waitFor(closed::get);
+        // The slot of the aborted conversion was released.
+        assertEquals("next", this.scheduler.run(() -> "next", NO_ABORT));
+    }
+
+    @Test
+    void runDoesNotStartAQueuedConversionThatTimedOut() throws Exception
+    {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        Future<String> first = this.callers.submit(() -> this.scheduler.run(() -> {
+            running.countDown();
+            // Keep the conversion thread busy until the next conversion timed out in the queue.
+            while (!finish.await(5, TimeUnit.SECONDS)) {
+                Thread.interrupted();
+            }
+            return "first";
+        }, NO_ABORT));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        AtomicBoolean started = new AtomicBoolean();
+        assertThrows(OfficeConverterException.class, () -> this.scheduler.run(() -> started.getAndSet(true), NO_ABORT));
+        assertEquals(0, this.scheduler.getQueueLength());
+
+        finish.countDown();
+        assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+        assertEquals("next", this.scheduler.run(() -> "next", NO_ABORT));
+        assertFalse(started.get());
+    }
+
+    private void waitFor(BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the condition");
+            Thread.sleep(10);
+        }
+    }
+}
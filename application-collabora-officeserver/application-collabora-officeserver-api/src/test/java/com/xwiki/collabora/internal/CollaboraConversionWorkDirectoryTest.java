@@ -0,0 +1,345 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xwiki.environment.Environment;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link CollaboraConversionWorkDirectory}, which keeps the files of up to 16 bytes in memory, holds
+ * up to 1 MB and accepts archives of up to 3 entries and 1 MB.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class CollaboraConversionWorkDirectoryTest
+{
+    private static final int MEMORY_THRESHOLD = 16;
+
+    private static final String OUTPUT_FILE_NAME = "output.pdf";
+
+    private static final String HTML_FILE_NAME = "output.html";
+
+    private static final String HTML = "html";
+
+    private static final String CLOSED = "The conversion result was closed";
+
+    private static final long MIN_AGE = 60000;
+
+    @InjectMockComponents
+    private CollaboraConversionWorkDirectory workDirectory;
+
+    @MockComponent
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    @MockComponent
+    private Environment environment;
+
+    @TempDir
+    File temporaryDirectory;
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.instanceConfiguration.getConversionMemoryThreshold()).thenReturn(MEMORY_THRESHOLD);
+        when(this.instanceConfiguration.getConversionWorkDirectoryMaxSize()).thenReturn(1L);
+        // Don't let the periodic cleanup run during the tests.
+        when(this.instanceConfiguration.getConversionWorkDirectorySweepInterval()).thenReturn(3600);
+        when(this.instanceConfiguration.getConversionArchiveMaxEntries()).thenReturn(3);
+        when(this.instanceConfiguration.getConversionArchiveMaxSize()).thenReturn(1L);
+        when(this.environment.getTemporaryDirectory()).thenAnswer(invocation -> this.temporaryDirectory);
+    }
+
+    @Test
+    void spoolInputWritesTheLargeFilesUntilReleased() throws Exception
+    {
+        DeferredFileOutputStream small = this.workDirectory.spoolInput(new ByteArrayInputStream(new byte[10]));
+        assertTrue(small.isInMemory());
+        assertEquals(0, this.workDirectory.getSize());
+
+        DeferredFileOutputStream large = this.workDirectory.spoolInput(new ByteArrayInputStream(new byte[100]));
+        assertFalse(large.isInMemory());
+        assertTrue(large.getFile().isFile());
+        assertEquals(100, this.workDirectory.getSize());
+
+        this.workDirectory.releaseInput(small);
+        this.workDirectory.releaseInput(large);
+        assertFalse(large.getFile().exists());
+        assertEquals(0, this.workDirectory.getSize());
+    }
+
+    @Test
+    void storeKeepsTheSmallResultsInMemory() throws Exception
+    {
+        byte[] content = "small".getBytes(StandardCharsets.UTF_8);
+        try (CollaboraOfficeConverterResult result =
+            this.workDirectory.store(OUTPUT_FILE_NAME, new ByteArrayInputStream(content))) {
+            assertEquals(0, this.workDirectory.getSize());
+            try (InputStream stream = result.openStream()) {
+                assertArrayEquals(content, stream.readAllBytes());
+            }
+
+            // The result is written to the disk only when its file is requested.
+            File file = result.getOutputFile();
+            assertEquals(OUTPUT_FILE_NAME, file.getName());
+            assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+            assertEquals(content.length, this.workDirectory.getSize());
+        }
+        assertEquals(0, this.workDirectory.getSize());
+    }
+
+    @Test
+    void storeReusesTheDirectoriesOfTheReleasedResults() throws Exception
+    {
+        File directory;
+        try (CollaboraOfficeConverterResult result =
+            this.workDirectory.store(OUTPUT_FILE_NAME, new ByteArrayInputStream(new byte[100]))) {
+            directory = result.getOutputDirectory();
+            assertEquals(100, this.workDirectory.getSize());
+            assertFalse(this.workDirectory.isFull());
+        }
+        assertEquals(0, this.workDirectory.getSize());
+        assertTrue(directory.isDirectory());
+        assertEquals(0, directory.list().length);
+
+        try (CollaboraOfficeConverterResult result =
+            this.workDirectory.store("other.pdf", new ByteArrayInputStream(new byte[100]))) {
+            assertEquals(directory, result.getOutputDirectory());
+        }
+    }
+
+    @Test
+    void isFullOnceTheMaximumSizeIsReached() throws Exception
+    {
+        try (CollaboraOfficeConverterResult result =
+            this.workDirectory.store(OUTPUT_FILE_NAME, new ByteArrayInputStream(new byte[1024 * 1024]))) {
+            assertTrue(this.workDirectory.isFull());
+        }
+        assertFalse(this.workDirectory.isFull());
+    }
+
+    @Test
+    void storeArchiveRenamesTheMainFile() throws Exception
+    {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("images/", new byte[0]);
+        entries.put("images/image.png", new byte[100]);
+        entries.put("document.html", new byte[50]);
+        try (CollaboraOfficeConverterResult result =
+            this.workDirectory.storeArchive(HTML_FILE_NAME, zip(entries), HTML::equals)) {
+            File file = result.getOutputFile();
+            assertEquals(HTML_FILE_NAME, file.getName());
+            assertEquals(50, file.length());
+            assertEquals(Set.of(file, new File(file.getParentFile(), "images/image.png")), result.getAllFiles());
+            assertFalse(result.isSingleFile());
+            assertEquals(150, result.getSize());
+            assertEquals(150, this.workDirectory.getSize());
+        }
+        assertEquals(0, this.workDirectory.getSize());
+    }
+
+    @Test
+    void storeArchiveRejectsTheEntriesOutsideOfTheResultDirectory() throws Exception
+    {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("document.html", new byte[10]);
+        entries.put("../escaped.png", new byte[10]);
+
+        IOException exception = assertThrows(IOException.class,
+            () -> this.workDirectory.storeArchive(HTML_FILE_NAME, zip(entries), HTML::equals));
+
+        assertEquals("Invalid entry [../escaped.png] in the conversion result.", exception.getMessage());
+        assertFalse(new File(this.temporaryDirectory, "collabora/conversions/escaped.png").exists());
+        assertEquals(0, this.workDirectory.getSize());
+    }
+
+    @Test
+    void storeArchiveRejectsTooManyEntries() throws Exception
+    {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("document.html", new byte[10]);
+        for (int i = 0; i < 3; i++) {
+            entries.put(String.format("image%d.png", i), new byte[10]);
+        }
+
+        IOException exception = assertThrows(IOException.class,
+            () -> this.workDirectory.storeArchive(HTML_FILE_NAME, zip(entries), HTML::equals));
+
+        assertEquals("The conversion result archive has more than [3] entries.", exception.getMessage());
+        assertEquals(0, this.workDirectory.getSize());
+    }
+
+    @Test
+    void storeArchiveRejectsTooLargeFiles() throws Exception
+    {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("document.html", new byte[10]);
+        // Highly compressed, like a ZIP bomb.
+        entries.put("image.png", new byte[1024 * 1024]);
+
+        IOException exception = assertThrows(IOException.class,
+            () -> this.workDirectory.storeArchive(HTML_FILE_NAME, zip(entries), HTML::equals));
+
+        assertEquals("The conversion result archive is larger than [1048576] bytes once uncompressed.",
+            exception.getMessage());
+        assertEquals(0, this.workDirectory.getSize());
+    }
+
+    @Test
+    void storeArchiveRequiresTheMainFile() throws Exception
+    {
+        IOException exception = assertThrows(IOException.class, () -> this.workDirectory.storeArchive(HTML_FILE_NAME,
+            zip(Map.of("image.png", new byte[10])), HTML::equals));
+
+        assertEquals("The conversion result archive doesn't contain the converted document.", exception.getMessage());
+    }
+
+    @Test
+    void closedResultsCantBeRead() throws Exception
+    {
+        CollaboraOfficeConverterResult inMemory =
+            this.workDirectory.store(OUTPUT_FILE_NAME, new ByteArrayInputStream(new byte[10]));
+        inMemory.close();
+        assertClosed(inMemory);
+
+        CollaboraOfficeConverterResult onDisk =
+            this.workDirectory.store(OUTPUT_FILE_NAME, new ByteArrayInputStream(new byte[100]));
+        File file = onDisk.getOutputFile();
+        onDisk.close();
+        assertFalse(file.exists());
+        assertClosed(onDisk);
+    }
+
+    @Test
+    void removeOrphansOnlyRemovesTheOldUnusedFiles() throws Exception
+    {
+        File conversionsDirectory = new File(this.temporaryDirectory, "collabora/conversions");
+        long old = System.currentTimeMillis() - 2 * MIN_AGE;
+        CollaboraOfficeConverterResult usedResult =
+            this.workDirectory.store(OUTPUT_FILE_NAME, new ByteArrayInputStream(new byte[100]));
+        File usedDirectory = usedResult.getOutputDirectory();
+        usedDirectory.setLastModified(old);
+        File freeDirectory;
+        try (CollaboraOfficeConverterResult result =
+            this.workDirectory.store(OUTPUT_FILE_NAME, new ByteArrayInputStream(new byte[100]))) {
+            freeDirectory = result.getOutputDirectory();
+        }
+        freeDirectory.setLastModified(old);
+        File oldOrphan = new File(conversionsDirectory, "old");
+        Files.write(oldOrphan.toPath(), new byte[10]);
+        oldOrphan.setLastModified(old);
+        File recentOrphan = new File(conversionsDirectory, "recent");
+        Files.write(recentOrphan.toPath(), new byte[10]);
+
+        this.workDirectory.removeOrphans(MIN_AGE);
+
+        assertFalse(oldOrphan.exists());
+        assertTrue(recentOrphan.exists());
+        assertTrue(usedResult.getOutputFile().isFile());
+        assertTrue(freeDirectory.isDirectory());
+        assertEquals(1, this.workDirectory.getOrphanCount());
+        usedResult.close();
+    }
+
+    @Test
+    void leakedResultsWithRequestedFilesAreDetached() throws Exception
+    {
+        File file = storeAndLeak();
+        waitForGarbageCollection(() -> this.workDirectory.getLeakedResultCount() == 1);
+
+        // The caller might still use the file, so it's only removed by the periodic cleanup.
+        assertTrue(file.isFile());
+        assertEquals(0, this.workDirectory.getSize());
+        this.workDirectory.removeOrphans(MIN_AGE);
+        assertTrue(file.isFile());
+
+        file.getParentFile().setLastModified(System.currentTimeMillis() - 2 * MIN_AGE);
+        this.workDirectory.removeOrphans(MIN_AGE);
+        assertFalse(file.getParentFile().exists());
+        assertEquals(1, this.workDirectory.getOrphanCount());
+    }
+
+    private InputStream zip(Map<String, byte[]> entries) throws IOException
+    {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (ZipOutputStream zipStream = new ZipOutputStream(archive)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                zipStream.putNextEntry(new ZipEntry(entry.getKey()));
+                zipStream.write(entry.getValue());
+                zipStream.closeEntry();
+            }
+        }
+        return new ByteArrayInputStream(archive.toByteArray());
+    }
+
+    private File storeAndLeak() throws Exception
+    {
+        // The result is not closed on purpose.
+        return this.workDirectory.store(OUTPUT_FILE_NAME, new ByteArrayInputStream(new byte[100])).getOutputFile();
+    }
+
+    private void assertClosed(CollaboraOfficeConverterResult result)
+    {
+        IOException exception = assertThrows(IOException.class, result::openStream);
+        assertEquals(CLOSED, exception.getMessage());
+        UncheckedIOException uncheckedException = assertThrows(UncheckedIOException.class, result::getOutputFile);
+        assertEquals(CLOSED, uncheckedException.getCause().getMessage());
+    }
+
+    private void waitForGarbageCollection(BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the garbage collection");
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Unit tests for {@link CollaboraHTMLInliner}.
+ *
+ * @version $Id$
+ */
+class CollaboraHTMLInlinerTest
+{
+    // "image" encoded in base 64.
+    private static final String IMAGE = "data:image/png;base64,aW1hZ2U=";
+
+    // "style" encoded in base 64.
+    private static final String STYLE = "data:text/css;base64,c3R5bGU=";
+
+    @Test
+    void inlineQuotedAndUnquotedSources() throws Exception
+    {
+        assertEquals(String.format("<p><img src=\"%1$s\"><img alt='' src='%1$s'><img src=%1$s /><IMG SRC = %1$s>"
+            + "<img src=\"other.png\"></p>", IMAGE),
+            inline("<p><img src=\"image.png\"><img alt='' src='image.png'><img src=image.png /><IMG SRC = image.png>"
+                + "<img src=\"other.png\"></p>"));
+    }
+
+    @Test
+    void inlineEncodedNames() throws Exception
+    {
+        assertEquals(String.format("<img src=\"%s\"><img src=\"%s\">", IMAGE,
+            "data:image/png;base64,aW1hZ2Ugw6k="),
+            inline("<img src=\"image.png\"><img src=\"image%20%C3%A9.png\">"));
+    }
+
+    @Test
+    void inlineOnlyTheStylesheetLinks() throws Exception
+    {
+        assertEquals(String.format("<link href=\"%1$s\" rel=\"alternate stylesheet\"><link rel=stylesheet href=%1$s>"
+            + "<link rel=\"icon\" href=\"style.css\"><a href=\"style.css\">link</a>", STYLE),
+            inline("<link href=\"style.css\" rel=\"alternate stylesheet\"><link rel=stylesheet href=style.css>"
+                + "<link rel=\"icon\" href=\"style.css\"><a href=\"style.css\">link</a>"));
+    }
+
+    @Test
+    void inlineIgnoresTheReferencesInOtherAttributeValues() throws Exception
+    {
+        assertEquals(String.format("<img alt=\"src=image.png > src='image.png'\" data-src=\"image.png\" src=\"%s\">"
+            + "<p title='it\"s src=image.png'>src=\"image.png\"</p>", IMAGE),
+            inline("<img alt=\"src=image.png > src='image.png'\" data-src=\"image.png\" src=\"image.png\">"
+                + "<p title='it\"s src=image.png'>src=\"image.png\"</p>"));
+    }
+
+    private String inline(String html) throws IOException
+    {
+        Map<String, InputStream> resources = new HashMap<>();
+        resources.put("image.png", toStream("image"));
+        resources.put("image \u00e9.png", toStream("image \u00e9"));
+        resources.put("other.gif", toStream("other"));
+        resources.put("style.css", toStream("style"));
+        try (InputStream result = CollaboraHTMLInliner.inline(toStream(html), resources)) {
+            return new String(result.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private InputStream toStream(String content)
+    {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
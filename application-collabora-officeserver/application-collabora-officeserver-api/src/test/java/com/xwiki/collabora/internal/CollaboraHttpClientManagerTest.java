@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.sun.net.httpserver.HttpServer;
+import com.xwiki.collabora.internal.configuration.CollaboraInstanceConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link CollaboraHttpClientManager}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class CollaboraHttpClientManagerTest
+{
+    private static final byte[] RESPONSE = "converted".getBytes(StandardCharsets.UTF_8);
+
+    @InjectMockComponents
+    private CollaboraHttpClientManager clientManager;
+
+    @MockComponent
+    private CollaboraInstanceConfiguration instanceConfiguration;
+
+    private HttpServer server;
+
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.instanceConfiguration.getConversionMaxConnections()).thenReturn(4);
+        when(this.instanceConfiguration.getConversionMaxConnectionsPerRoute()).thenReturn(2);
+        when(this.instanceConfiguration.getConversionConnectTimeout()).thenReturn(5);
+        when(this.instanceConfiguration.getConversionSocketTimeout()).thenReturn(5);
+        when(this.instanceConfiguration.getConversionKeepAlive()).thenReturn(60);
+    }
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/cool/convert-to", exchange -> {
+            this.clientPorts.add(exchange.getRemoteAddress().getPort());
+            exchange.sendResponseHeaders(200, RESPONSE.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(RESPONSE);
+            }
+        });
+        this.server.start();
+    }
+
+    @AfterEach
+    void tearDown()
+    {
+        this.server.stop(0);
+    }
+
+    @Test
+    void consecutiveRequestsReuseTheConnection() throws Exception
+    {
+        String url = "http://localhost:" + this.server.getAddress().getPort() + "/cool/convert-to";
+        for (int i = 0; i < 5; i++) {
+            try (CloseableHttpResponse response = this.clientManager.getClient().execute(new HttpGet(url))) {
+                assertEquals("converted", EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+            }
+        }
+
+        // All the requests were sent over the same kept alive connection.
+        assertEquals(1, this.clientPorts.size());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.collabora.internal;
+
+import java.util.Locale;
+
+import org.apache.tika.Tika;
+import org.junit.jupiter.api.Test;
+
+import static com.xwiki.collabora.internal.CollaboraOfficeConverterFormatHelper.isConversionSupportedForFormat;
+import static com.xwiki.collabora.internal.CollaboraOfficeConverterFormatHelper.isConversionSupportedForMediaType;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link CollaboraOfficeConverterFormatHelper}.
+ *
+ * @version $Id$
+ */
+class CollaboraOfficeConverterFormatHelperTest
+{
+    @Test
+    void isHTMLFormat()
+    {
+        assertTrue(CollaboraOfficeConverterFormatHelper.isHTMLFormat("html"));
+        assertTrue(CollaboraOfficeConverterFormatHelper.isHTMLFormat("XHTML"));
+        assertTrue(CollaboraOfficeConverterFormatHelper.isHTMLFormat("Htm"));
+        assertFalse(CollaboraOfficeConverterFormatHelper.isHTMLFormat("pdf"));
+        assertFalse(CollaboraOfficeConverterFormatHelper.isHTMLFormat("xml"));
+    }
+
+    @Test
+    void formatConversionsIgnoreTheCaseWhateverTheDefaultLocale()
+    {
+        Locale defaultLocale = Locale.getDefault();
+        // Lower casing with the Turkish locale turns "I" into a dotless "i".
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            assertTrue(isConversionSupportedForFormat("DOCX", "PDF"));
+            assertTrue(isConversionSupportedForFormat("SXI", "PDF"));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    @Test
+    void supportedFormatConversions()
+    {
+        assertTrue(isConversionSupportedForFormat("docx", "pdf"));
+        assertTrue(isConversionSupportedForFormat("html", "docx"));
+        assertTrue(isConversionSupportedForFormat("xlsx", "ods"));
+        assertTrue(isConversionSupportedForFormat("pptx", "svg"));
+
+        // Writer documents can't be converted to spreadsheets.
+        assertFalse(isConversionSupportedForFormat("docx", "xlsx"));
+        assertFalse(isConversionSupportedForFormat("html", "pptx"));
+        // Only the input formats of Writer, Calc and Impress can be converted.
+        assertFalse(isConversionSupportedForFormat("pdf", "docx"));
+        assertFalse(isConversionSupportedForFormat("unknown", "pdf"));
+        assertFalse(isConversionSupportedForFormat("docx", "unknown"));
+    }
+
+    @Test
+    void supportedMediaTypeConversions()
+    {
+        // The media types are the ones detected from the format names.
+        Tika tika = new Tika();
+        String docx = tika.detect("docx");
+        String pdf = tika.detect("pdf");
+
+        assertTrue(isConversionSupportedForMediaType(docx, pdf));
+        assertTrue(isConversionSupportedForMediaType(docx.toUpperCase(Locale.ROOT), pdf));
+        assertFalse(isConversionSupportedForMediaType("application/x-unknown", pdf));
+    }
+}
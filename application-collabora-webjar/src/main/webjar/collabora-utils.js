@@ -26,17 +26,62 @@ define('collabora-attachment', {
 });
 
 define('collabora-utils', ['jquery', 'xwiki-l10n!collabora-attachment'], function($, l10n) {
+  // The formats for which the editor is offered, used as long as the formats supported by the Collabora server are not
+  // known (or if they can't be loaded).
+  const getDefaultExtAcceptedAction = function() {
+    const canDoByExt = {};
+    ['doc', 'docx', 'xls', 'xlsx', 'xlsm', 'ppt', 'pptx', 'csv', 'rtf', 'txt', 'odt', 'ods', 'odp', 'odg']
+      .forEach(function(x) {
+        canDoByExt[x] = 'edit';
+    });
+    ['pdf', 'fb2'].forEach(function(x) {
+      canDoByExt[x] = 'view';
+    });
+    return canDoByExt;
+  };
+
+  let extAcceptedAction = getDefaultExtAcceptedAction();
+  let extAcceptedActionPromise;
+
   const collaboraUtils = {
     getExtAcceptedAction: function() {
-      const canDoByExt = {};
-      ['doc', 'docx', 'xls', 'xlsx', 'xlsm', 'ppt', 'pptx', 'csv', 'rtf', 'txt', 'odt', 'ods', 'odp', 'odg']
-        .forEach(function(x) {
-          canDoByExt[x] = 'edit';
-      });
-      ['pdf', 'fb2'].forEach(function(x) {
-        canDoByExt[x] = 'view';
-      });
-      return canDoByExt;
+      return extAcceptedAction;
+    },
+
+    /**
+     * Load the formats supported by the Collabora server configured for the current wiki once, with a single REST
+     * call, so that the editor is offered for exactly the formats the server can open, with the action it supports for
+     * each of them. The default formats are kept if the request fails.
+     */
+    loadExtAcceptedAction: function() {
+      if (!extAcceptedActionPromise) {
+        const contextPath = window.XWiki.contextPath || '/xwiki';
+        const wiki = encodeURIComponent(window.XWiki.currentWiki || '');
+        extAcceptedActionPromise = fetch(`${contextPath}/rest/collabora/formats?wiki=${wiki}`, {
+          headers: {
+            'Accept': 'application/json'
+          }
+        }).then(function(response) {
+          if (!response.ok) {
+            throw new Error(response.statusText);
+          }
+          return response.json();
+        }).then(function(formats) {
+          // Use the action (edit or view) advertised by the server for each of the formats it supports.
+          const canDoByExt = {};
+          Object.entries(formats.actions || {}).forEach(function([ext, action]) {
+            canDoByExt[ext.toLowerCase()] = action === 'edit' ? 'edit' : 'view';
+          });
+          if (Object.keys(canDoByExt).length) {
+            extAcceptedAction = canDoByExt;
+          }
+        }).catch(function(error) {
+          console.warn('Failed to load the formats supported by the Collabora server.', error);
+        }).then(function() {
+          return extAcceptedAction;
+        });
+      }
+      return extAcceptedActionPromise;
     },
 
     getAccessRights: function(fileName) {
@@ -54,7 +99,7 @@ define('collabora-utils', ['jquery', 'xwiki-l10n!collabora-attachment'], functio
 
     getAccessRightsForDocument: async function(fileName, documentRef) {
       const fileType = fileName.slice(fileName.lastIndexOf('.') + 1).toLowerCase();
-      const canDoByExt = collaboraUtils.getExtAcceptedAction();
+      const canDoByExt = await collaboraUtils.loadExtAcceptedAction();
       var accessRights = canDoByExt[fileType];
       if (!accessRights) {
         return false;